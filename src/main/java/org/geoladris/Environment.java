@@ -11,6 +11,18 @@ public class Environment {
   public static final String CONFIG_CACHE = "GEOLADRIS_CONFIG_CACHE";
   public static final String CONFIG_DIR = "GEOLADRIS_CONFIG_DIR";
   public static final String CACHE_TIMEOUT = "GEOLADRIS_CACHE_TIMEOUT";
+  public static final String CACHE_MAX_STALE = "GEOLADRIS_CACHE_MAX_STALE";
+  public static final String PRELOAD_BUDGET = "GEOLADRIS_PRELOAD_BUDGET";
+  public static final String CONFIG_ASYNC = "GEOLADRIS_CONFIG_ASYNC";
+  public static final String CONFIG_TIMEOUT = "GEOLADRIS_CONFIG_TIMEOUT";
+  public static final String RENDER_INDEX = "GEOLADRIS_RENDER_INDEX";
+  public static final String PROVIDER_TIMEOUT = "GEOLADRIS_PROVIDER_TIMEOUT";
+  public static final String PROVIDER_MAX_FAILURES = "GEOLADRIS_PROVIDER_MAX_FAILURES";
+  public static final String PROVIDER_COOL_DOWN = "GEOLADRIS_PROVIDER_COOL_DOWN";
+
+  private static final long DEFAULT_CONFIG_TIMEOUT = 30000;
+  private static final int DEFAULT_PROVIDER_MAX_FAILURES = 5;
+  private static final long DEFAULT_PROVIDER_COOL_DOWN = 30000;
 
   private static final Environment instance = new Environment();
 
@@ -37,6 +49,80 @@ public class Environment {
     return Boolean.parseBoolean(get(CONFIG_CACHE));
   }
 
+  /**
+   * @return maximum length of the <code>Link</code> header with the resources to preload. Zero
+   *         (the default) or an invalid value disables preloading.
+   */
+  public int getPreloadBudget(ServletContext context) {
+    try {
+      return Math.max(0, Integer.parseInt(get(PRELOAD_BUDGET, context)));
+    } catch (NumberFormatException e) {
+      return 0;
+    }
+  }
+
+  /**
+   * @return <code>true</code> if the configuration must be built out of the container threads.
+   */
+  public boolean getConfigAsync(ServletContext context) {
+    return Boolean.parseBoolean(get(CONFIG_ASYNC, context));
+  }
+
+  /**
+   * @return maximum time, in milliseconds, to build the configuration asynchronously. 30 seconds
+   *         by default.
+   */
+  public long getConfigTimeout(ServletContext context) {
+    try {
+      return Long.parseLong(get(CONFIG_TIMEOUT, context));
+    } catch (NumberFormatException e) {
+      return DEFAULT_CONFIG_TIMEOUT;
+    }
+  }
+
+  /**
+   * @return maximum time, in milliseconds, of a single configuration provider call. Zero (the
+   *         default) or an invalid value disables the limit.
+   */
+  public long getProviderTimeout(ServletContext context) {
+    try {
+      return Math.max(0, Long.parseLong(get(PROVIDER_TIMEOUT, context)));
+    } catch (NumberFormatException e) {
+      return 0;
+    }
+  }
+
+  /**
+   * @return consecutive failures after which a configuration provider is not called for a while.
+   *         5 by default; zero or negative to always call the providers.
+   */
+  public int getProviderMaxFailures(ServletContext context) {
+    try {
+      return Integer.parseInt(get(PROVIDER_MAX_FAILURES, context));
+    } catch (NumberFormatException e) {
+      return DEFAULT_PROVIDER_MAX_FAILURES;
+    }
+  }
+
+  /**
+   * @return time, in milliseconds, a failing configuration provider is not called. 30 seconds by
+   *         default.
+   */
+  public long getProviderCoolDown(ServletContext context) {
+    try {
+      return Long.parseLong(get(PROVIDER_COOL_DOWN, context));
+    } catch (NumberFormatException e) {
+      return DEFAULT_PROVIDER_COOL_DOWN;
+    }
+  }
+
+  /**
+   * @return <code>true</code> if the index page must be rendered with the configuration inlined.
+   */
+  public boolean getRenderIndex(ServletContext context) {
+    return Boolean.parseBoolean(get(RENDER_INDEX, context));
+  }
+
   public String getConfigDir(ServletContext context) {
     return get(CONFIG_DIR, context);
   }
@@ -0,0 +1,149 @@
+package org.geoladris;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.apache.log4j.Logger;
+
+/**
+ * <p>
+ * Runs actions when specific files change. Unlike {@link DirectoryWatcher}, each action is run
+ * only for changes in its own file, or in the files directly within its directory.
+ * </p>
+ *
+ * <p>
+ * Files do not need to exist when they are watched; actions are also run when they are created or
+ * deleted.
+ * </p>
+ */
+public class FileChangeWatcher implements Runnable {
+  private static final Logger logger = Logger.getLogger(FileChangeWatcher.class);
+
+  private final WatchService watcher;
+  private final Map<Path, List<Runnable>> actions = new ConcurrentHashMap<>();
+  private final Set<Path> registered =
+      Collections.newSetFromMap(new ConcurrentHashMap<Path, Boolean>());
+
+  public FileChangeWatcher() throws IOException {
+    this.watcher = FileSystems.getDefault().newWatchService();
+  }
+
+  /**
+   * Runs the given action every time the file changes. If the file is a directory, the action is
+   * also run when any of the files within the directory changes.
+   */
+  public void watch(File file, Runnable action) throws IOException {
+    Path path = file.toPath().toAbsolutePath().normalize();
+    List<Runnable> list = new CopyOnWriteArrayList<>();
+    List<Runnable> previous = this.actions.putIfAbsent(path, list);
+    (previous != null ? previous : list).add(action);
+
+    register(path.getParent());
+    register(path);
+  }
+
+  private void register(Path dir) throws IOException {
+    if (dir != null && Files.isDirectory(dir) && this.registered.add(dir)) {
+      dir.register(this.watcher, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+    }
+  }
+
+  @Override
+  public void run() {
+    while (true) {
+      WatchKey key;
+      try {
+        key = this.watcher.take();
+      } catch (InterruptedException | ClosedWatchServiceException e) {
+        return;
+      }
+
+      Path dir = (Path) key.watchable();
+      Set<Runnable> toRun = new LinkedHashSet<>();
+      for (WatchEvent<?> event : key.pollEvents()) {
+        if (event.kind().equals(OVERFLOW)) {
+          // Changes lost; run everything within the directory
+          for (Path path : this.actions.keySet()) {
+            if (dir.equals(path.getParent())) {
+              addActions(path, toRun);
+            }
+          }
+          addActions(dir, toRun);
+          continue;
+        }
+
+        Path changed = dir.resolve((Path) event.context());
+        addActions(changed, toRun);
+        addActions(dir, toRun);
+
+        if (event.kind().equals(ENTRY_CREATE) && this.actions.containsKey(changed)) {
+          try {
+            register(changed);
+          } catch (IOException e) {
+            logger.warn("Cannot watch new directory: " + changed, e);
+          }
+        }
+      }
+
+      if (!key.reset()) {
+        this.registered.remove(dir);
+      }
+
+      for (Runnable action : toRun) {
+        try {
+          action.run();
+        } catch (RuntimeException e) {
+          logger.error("Error processing change in " + dir, e);
+        }
+      }
+    }
+  }
+
+  private void addActions(Path path, Set<Runnable> toRun) {
+    List<Runnable> list = this.actions.get(path);
+    if (list != null) {
+      toRun.addAll(list);
+    }
+  }
+
+  /**
+   * Stops watching files.
+   */
+  public void close() {
+    try {
+      this.watcher.close();
+    } catch (IOException e) {
+      logger.warn("Cannot close file watcher", e);
+    }
+  }
+
+  /**
+   * @return a new watcher, already running in a daemon thread.
+   */
+  public static FileChangeWatcher start() throws IOException {
+    FileChangeWatcher watcher = new FileChangeWatcher();
+    Thread thread = new Thread(watcher, "geoladris-file-watcher");
+    thread.setDaemon(true);
+    thread.start();
+    return watcher;
+  }
+}
@@ -2,8 +2,8 @@ package org.geoladris;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.HashSet;
 import java.util.Set;
+import java.util.TreeSet;
 
 import org.apache.commons.io.IOUtils;
 
@@ -12,8 +12,17 @@ import net.sf.json.JSONObject;
 import net.sf.json.JSONSerializer;
 
 /**
+ * <p>
  * Contains all information about the plugin that may be necessary to make a geoladris application
  * work: modules, requirejs paths and shims, configuration, etc.
+ * </p>
+ *
+ * <p>
+ * Plugins can be shared between requests with {@link #createOverlay()}: the descriptor, modules,
+ * stylesheets and configuration are shared until they are modified. For this reason, the objects
+ * returned by {@link #getConfiguration()}, {@link #getUnqualifiedConfiguration()} and
+ * {@link #getRequireJS()} must not be modified.
+ * </p>
  *
  * @author fergonco
  */
@@ -26,10 +35,16 @@ public class Plugin {
   public static final String CONF_OVERRIDE = "_override";
 
   private JSONObject configuration = new JSONObject();
-  private HashSet<String> modules = new HashSet<String>();
+  // configuration without the plugin name in the keys; built when requested
+  private volatile JSONObject unqualifiedConfiguration;
+  private TreeSet<String> modules = new TreeSet<String>();
+  private TreeSet<String> stylesheets = new TreeSet<String>();
   private String name;
   private boolean installInRoot, enabled;
   private final JSONObject descriptor;
+  // true if the objects are shared with other plugins (see createOverlay). Volatile, since plugins
+  // shared between requests are marked by the request threads creating overlays of them
+  private volatile boolean sharedConfiguration, sharedFiles;
 
   public Plugin(String name, File configFile) throws IOException {
     this(name, (JSONObject) JSONSerializer.toJSON(IOUtils.toString(configFile.toURI())));
@@ -71,14 +86,13 @@ public class Plugin {
 
   /**
    * Get the modules. It returns a new copied set each time; if you want to add a new module use
-   * {@link #addModule(String)}.
+   * {@link #addModule(String)}. Modules are sorted by name, so the iteration order is the same for
+   * equal plugins.
    *
    * @return the modules.
    */
   public Set<String> getModules() {
-    Set<String> ret = new HashSet<>();
-    ret.addAll(this.modules);
-    return ret;
+    return new TreeSet<>(this.modules);
   }
 
   /**
@@ -93,9 +107,44 @@ public class Plugin {
     if (!this.installInRoot) {
       module = this.name + "/" + module;
     }
+    unshareFiles();
     this.modules.add(module);
   }
 
+  /**
+   * Get the stylesheets. As {@link #getModules()}, it returns a new copied sorted set each time.
+   *
+   * @return the stylesheets, as paths relative to the application root.
+   */
+  public Set<String> getStylesheets() {
+    return new TreeSet<>(this.stylesheets);
+  }
+
+  /**
+   * @param stylesheet The path for the CSS within the <code>css</code> directory of the plugin. As
+   *        with modules, this class takes care of qualifying the path with the plugin name.
+   */
+  public void addStylesheet(String stylesheet) {
+    stylesheet = PluginDirsAnalyzer.STYLES + "/" + stylesheet;
+    if (!this.installInRoot) {
+      stylesheet = this.name + "/" + stylesheet;
+    }
+    unshareFiles();
+    this.stylesheets.add(stylesheet);
+  }
+
+  /**
+   * @param stylesheet The path for the CSS within the <code>src</code> directory of the plugin. As
+   *        with modules, this class takes care of qualifying the path with the plugin name.
+   */
+  public void addModuleStylesheet(String stylesheet) {
+    if (!this.installInRoot) {
+      stylesheet = this.name + "/" + stylesheet;
+    }
+    unshareFiles();
+    this.stylesheets.add(stylesheet);
+  }
+
   public boolean isEnabled() {
     return this.enabled;
   }
@@ -104,36 +153,123 @@ public class Plugin {
     return configuration;
   }
 
+  /**
+   * Returns the configuration with the module names as used within the plugin, without the plugin
+   * name. It is built once for each configuration change and shared with the overlays, so it must
+   * not be modified either.
+   *
+   * @return the unqualified configuration.
+   */
+  public JSONObject getUnqualifiedConfiguration() {
+    JSONObject ret = this.unqualifiedConfiguration;
+    if (ret == null) {
+      if (this.installInRoot) {
+        ret = this.configuration;
+      } else {
+        String prefix = this.name + "/";
+        ret = new JSONObject();
+        for (Object key : this.configuration.keySet()) {
+          String module = key.toString();
+          if (module.startsWith(prefix)) {
+            module = module.substring(prefix.length());
+          }
+          ret.element(module, this.configuration.get(key));
+        }
+      }
+      this.unqualifiedConfiguration = ret;
+    }
+    return ret;
+  }
+
   public void setConfiguration(JSONObject configuration) {
     boolean override = configuration.optBoolean(CONF_OVERRIDE, false);
     this.enabled = configuration.optBoolean(CONF_ENABLED, this.enabled);
 
-    JSONObject newConfig = JSONObject.fromObject(configuration.toString());
-    newConfig.remove(CONF_ENABLED);
-    newConfig.remove(CONF_OVERRIDE);
-
-    if (!this.installInRoot) {
-      // prefix all keys with plugin name
-      JSONObject qualified = new JSONObject();
-      for (Object moduleName : newConfig.keySet()) {
-        qualified.put(this.name + "/" + moduleName, newConfig.get(moduleName));
+    // Copy without the flags, prefixing all keys with plugin name if necessary
+    JSONObject newConfig = new JSONObject();
+    for (Object key : configuration.keySet()) {
+      if (!key.equals(CONF_ENABLED) && !key.equals(CONF_OVERRIDE)) {
+        String moduleName = this.installInRoot ? key.toString() : this.name + "/" + key;
+        newConfig.element(moduleName, configuration.get(key));
       }
-
-      newConfig = qualified;
     }
 
-    this.configuration = override ? newConfig : JSONUtils.merge(this.configuration, newConfig);
+    if (override) {
+      this.configuration = newConfig;
+      this.sharedConfiguration = false;
+      this.unqualifiedConfiguration = null;
+    } else if (!newConfig.isEmpty()) {
+      JSONObject current = this.configuration;
+      if (this.sharedConfiguration) {
+        // Do not modify the configuration of other plugins
+        current = JSONObject.fromObject(current);
+      }
+      this.configuration = JSONUtils.merge(current, newConfig);
+      this.sharedConfiguration = false;
+      this.unqualifiedConfiguration = null;
+    }
   }
 
   public boolean isInstallInRoot() {
     return installInRoot;
   }
 
-  @SuppressWarnings("unchecked")
+  /**
+   * Creates a lightweight copy of this plugin for a single request. It shares the descriptor,
+   * modules, stylesheets and configuration with this plugin; they are only copied if they are
+   * modified by any of the plugins.
+   *
+   * @return the overlay.
+   */
+  public Plugin createOverlay() {
+    // As clonePlugin, the overlay is enabled until configured otherwise
+    Plugin ret = new Plugin(this.name, this.installInRoot, this.descriptor);
+    ret.configuration = this.configuration;
+    ret.unqualifiedConfiguration = getUnqualifiedConfiguration();
+    ret.modules = this.modules;
+    ret.stylesheets = this.stylesheets;
+    ret.sharedConfiguration = true;
+    ret.sharedFiles = true;
+    // Only written the first time: plugins shared between requests are already marked
+    if (!this.sharedConfiguration) {
+      this.sharedConfiguration = true;
+    }
+    if (!this.sharedFiles) {
+      this.sharedFiles = true;
+    }
+    return ret;
+  }
+
+  /**
+   * Takes the configuration and enabled state of another plugin with the same name, sharing the
+   * configuration with it as {@link #createOverlay()} does. The result is the same as repeating the
+   * {@link #setConfiguration(JSONObject)} calls made on the other plugin.
+   *
+   * @param plugin the plugin to take the configuration from.
+   */
+  public void shareConfiguration(Plugin plugin) {
+    this.configuration = plugin.configuration;
+    this.unqualifiedConfiguration = plugin.getUnqualifiedConfiguration();
+    this.enabled = plugin.enabled;
+    this.sharedConfiguration = true;
+    if (!plugin.sharedConfiguration) {
+      plugin.sharedConfiguration = true;
+    }
+  }
+
+  private void unshareFiles() {
+    if (this.sharedFiles) {
+      this.modules = new TreeSet<>(this.modules);
+      this.stylesheets = new TreeSet<>(this.stylesheets);
+      this.sharedFiles = false;
+    }
+  }
+
   public Plugin clonePlugin() {
     Plugin ret = new Plugin(this.name, this.installInRoot, JSONObject.fromObject(this.descriptor));
     ret.configuration = JSONObject.fromObject(this.configuration);
-    ret.modules = (HashSet<String>) this.modules.clone();
+    ret.modules = new TreeSet<>(this.modules);
+    ret.stylesheets = new TreeSet<>(this.stylesheets);
     return ret;
   }
 
@@ -15,6 +15,7 @@ public class PluginDirsAnalyzer {
   private static Logger logger = Logger.getLogger(PluginDirsAnalyzer.class);
 
   public static final String MODULES = "src";
+  public static final String STYLES = "css";
   public static final String CONF_FILE = "geoladris.json";
 
   private Set<Plugin> plugins;
@@ -64,21 +65,41 @@ public class PluginDirsAnalyzer {
       this.plugins.add(plugin);
 
       File modulesDir = new File(pluginDir, MODULES);
-      if (modulesDir.isDirectory()) {
-        Collection<File> modules = FileUtils.listFiles(modulesDir, new AbstractFileFilter() {
-          @Override
-          public boolean accept(File file, String name) {
-            return name.toLowerCase().endsWith(".js");
-          }
-        }, TrueFileFilter.INSTANCE);
-        int rootLength = modulesDir.getAbsolutePath().length() + 1;
-        for (File module : modules) {
-          String path = module.getAbsolutePath();
-          path = path.substring(rootLength, path.length() - 3);
-          plugin.addModule(path);
-        }
+      for (String module : listFiles(modulesDir, ".js")) {
+        plugin.addModule(module.substring(0, module.length() - 3));
       }
+      // Loaded along with the modules, as the application build does
+      for (String stylesheet : listFiles(modulesDir, ".css")) {
+        plugin.addModuleStylesheet(stylesheet);
+      }
+
+      File stylesDir = new File(pluginDir, STYLES);
+      for (String stylesheet : listFiles(stylesDir, ".css")) {
+        plugin.addStylesheet(stylesheet);
+      }
+    }
+  }
+
+  /**
+   * @return the paths, relative to <code>dir</code>, of the files with the given extension.
+   */
+  private Set<String> listFiles(File dir, final String extension) {
+    Set<String> ret = new HashSet<>();
+    if (!dir.isDirectory()) {
+      return ret;
+    }
+
+    Collection<File> files = FileUtils.listFiles(dir, new AbstractFileFilter() {
+      @Override
+      public boolean accept(File file, String name) {
+        return name.toLowerCase().endsWith(extension);
+      }
+    }, TrueFileFilter.INSTANCE);
+    int rootLength = dir.getAbsolutePath().length() + 1;
+    for (File file : files) {
+      ret.add(file.getAbsolutePath().substring(rootLength));
     }
+    return ret;
   }
 
   public Set<Plugin> getPlugins() {
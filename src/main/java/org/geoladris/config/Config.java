@@ -1,6 +1,8 @@
 package org.geoladris.config;
 
 import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
@@ -33,16 +35,54 @@ public interface Config {
    */
   Map<String, String>[] getLanguages();
 
+  /**
+   * Same as {@link #getLanguages()}, without copying the languages on each call.
+   *
+   * @return The unmodifiable list of languages or null if no language configuration is found
+   */
+  default List<Map<String, String>> getLanguageList() {
+    Map<String, String>[] languages = getLanguages();
+    return languages != null ? Collections.unmodifiableList(Arrays.asList(languages)) : null;
+  }
+
   ResourceBundle getMessages(Locale locale) throws ConfigException;
 
+  /**
+   * @deprecated use {@link #localize(String, ConfigContext)} instead. Messages are taken from the
+   *             locale of the configuration being built when called by a
+   *             {@link PluginConfigProvider}, and from the default language otherwise.
+   */
+  @Deprecated
   String localize(String template);
 
+  /**
+   * @param template template with <code>${key}</code> references to messages.
+   * @param context context of the request; messages are taken from its locale.
+   * @return the template with the message references replaced. By default, the same as
+   *         {@link #localize(String)}.
+   */
+  @SuppressWarnings("deprecation")
+  default String localize(String template, ConfigContext context) {
+    return localize(template);
+  }
+
   /**
    * @param property
    * @return the property as an array or null if the property does not exist.
    */
   String[] getPropertyAsArray(String property);
 
+  /**
+   * Same as {@link #getPropertyAsArray(String)}, without copying the values on each call.
+   *
+   * @param property
+   * @return the unmodifiable list of values or null if the property does not exist.
+   */
+  default List<String> getPropertyAsList(String property) {
+    String[] values = getPropertyAsArray(property);
+    return values != null ? Collections.unmodifiableList(Arrays.asList(values)) : null;
+  }
+
   /**
    * @return The language defined as default in the configuration or null if no language is defined
    *         in the configuration
@@ -58,6 +98,54 @@ public interface Config {
    */
   Plugin[] getPluginConfig(Locale locale, HttpServletRequest request);
 
+  /**
+   * @param context
+   * @return the same as {@link #getPluginConfig(Locale, HttpServletRequest)}, for the locale and
+   *         request of the context.
+   */
+  default Plugin[] getPluginConfig(ConfigContext context) {
+    return getPluginConfig(context.getLocale(), context.getRequest());
+  }
+
+  /**
+   * @param locale
+   * @param request
+   * @return a key that identifies the result of
+   *         {@link #getPluginConfig(Locale, HttpServletRequest)} for the given locale and request,
+   *         or null if it cannot be cached. The key changes whenever the plugins or the cached
+   *         configuration change. By default, null.
+   */
+  default String getCacheKey(Locale locale, HttpServletRequest request) {
+    return null;
+  }
+
+  /**
+   * @param context
+   * @return the same as {@link #getCacheKey(Locale, HttpServletRequest)}, for the locale and
+   *         request of the context.
+   */
+  default String getCacheKey(ConfigContext context) {
+    return getCacheKey(context.getLocale(), context.getRequest());
+  }
+
+  /**
+   * @param request
+   * @return plugin configuration provided only by the {@link PluginConfigProvider} instances that
+   *         can be cached, that is, the part of the configuration that is the same for all
+   *         requests. By default, the whole configuration for the request and no locale.
+   */
+  default Plugin[] getSharedPluginConfig(HttpServletRequest request) {
+    return getPluginConfig(null, request);
+  }
+
+  /**
+   * @return a key that identifies the result of {@link #getSharedPluginConfig(HttpServletRequest)},
+   *         or null if it cannot be cached. By default, null.
+   */
+  default String getSharedCacheKey() {
+    return null;
+  }
+
   /**
    * @return the folder in the configuration directory where client plugins are to be found.
    */
@@ -68,4 +156,10 @@ public interface Config {
   void addPluginConfigProvider(PluginConfigProvider provider);
 
   List<PluginConfigProvider> getPluginConfigProviders();
+
+  /**
+   * Stops the threads used to build the configuration in the background, if any. The configuration
+   * must not be used afterwards.
+   */
+  default void close() {}
 }
@@ -0,0 +1,63 @@
+package org.geoladris.config;
+
+import java.util.Locale;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpSession;
+
+import org.geoladris.Geoladris;
+
+/**
+ * <p>
+ * What a single request needs to build its configuration: the locale, the request and the role of
+ * the user.
+ * </p>
+ *
+ * <p>
+ * Contexts are created for each request and never shared, so {@link Config} does not need to keep
+ * any request state and configurations for different requests can be built concurrently.
+ * </p>
+ */
+public class ConfigContext {
+  private final Locale locale;
+  private final HttpServletRequest request;
+  private String role;
+  private boolean roleRead;
+
+  public ConfigContext(Locale locale, HttpServletRequest request) {
+    this.locale = locale;
+    this.request = request;
+  }
+
+  public Locale getLocale() {
+    return this.locale;
+  }
+
+  public HttpServletRequest getRequest() {
+    return this.request;
+  }
+
+  /**
+   * @return the {@link Geoladris#ATTR_ROLE} session attribute, or null if there is no request,
+   *         session or role.
+   */
+  public String getRole() {
+    if (!this.roleRead) {
+      this.role = readRole();
+      this.roleRead = true;
+    }
+    return this.role;
+  }
+
+  private String readRole() {
+    if (this.request == null) {
+      return null;
+    }
+    HttpSession session = this.request.getSession();
+    if (session == null) {
+      return null;
+    }
+    Object attr = session.getAttribute(Geoladris.ATTR_ROLE);
+    return attr != null ? attr.toString() : null;
+  }
+}
@@ -1,69 +1,177 @@
 package org.geoladris.config;
 
-import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.net.MalformedURLException;
-import java.net.URL;
-import java.net.URLClassLoader;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
-import java.util.MissingResourceException;
+import java.util.Objects;
 import java.util.Properties;
-import java.util.PropertyResourceBundle;
 import java.util.ResourceBundle;
 import java.util.Set;
-import java.util.Timer;
-import java.util.TimerTask;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.TreeMap;
+import java.util.WeakHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.ToLongFunction;
 
 import javax.servlet.http.HttpServletRequest;
 
 import org.apache.log4j.Logger;
+import org.geoladris.FileChangeWatcher;
 import org.geoladris.Plugin;
+import org.geoladris.servlet.DetachedRequest;
 
 import net.sf.json.JSONObject;
 
 public class ConfigImpl implements Config {
   private static final Logger logger = Logger.getLogger(ConfigImpl.class);
 
-  private static final String PROPERTY_DEFAULT_LANG = "languages.default";
+  private static final String PORTAL_PROPERTIES = "portal.properties";
+  private static final String MESSAGES_DIR = "messages";
+  private static final int MAX_CACHED_LOCALES = 32;
+  private static final int MAX_CACHED_CONFIGURATIONS = 256;
+  private static final int MAX_TEMPLATES = 256;
+  private static final int MAX_MERGES = 1024;
+  // provider key of the configuration that does not depend on the request
+  private static final String SHARED_KEY = "";
+  private static final int DEFAULT_PROVIDER_MAX_FAILURES = 5;
+  private static final long DEFAULT_PROVIDER_COOL_DOWN = 30000;
+  private static final int PROVIDER_THREADS = 8;
+  private static final int MAX_QUEUED_PROVIDERS = 64;
+  // threads running the provider calls with a time budget
+  static final int GUARD_THREADS = 16;
+
+  // context of the configuration being built by the providers called in each thread
+  private static final ThreadLocal<ConfigContext> currentContext = new ThreadLocal<>();
 
   private File configDir;
   private Set<Plugin> plugins;
   private boolean useCache;
   private List<PluginConfigProvider> configProviders;
-  private Locale currentLocale;
-
-  private Map<PluginConfigProvider, Map<String, JSONObject>> cachedConfigurations =
-      new HashMap<PluginConfigProvider, Map<String, JSONObject>>();
-  private Map<Locale, ResourceBundle> localeBundles = new HashMap<Locale, ResourceBundle>();
-  private Properties properties;
+  private volatile MessageCatalog messageCatalog;
+  private AtomicLong generation = new AtomicLong();
+
+  private ExpiringCache<ProviderKey, Map<String, JSONObject>> cachedConfigurations;
+  // configuration of the providers that publish their changes; it does not expire
+  private ExpiringCache<ProviderKey, Map<String, JSONObject>> publishedConfigurations;
+  private ExpiringCache<Locale, ResourceBundle> localeBundles;
+  private ExpiringCache<String, PortalProperties> properties;
+  private long ttl;
+  // versions of the provider configurations by provider key (SHARED_KEY for the configuration
+  // that does not depend on the request, along with portal.properties) and of the messages by
+  // locale
+  private KeyVersions<Object> versions;
+  private FileChangeWatcher watcher;
+  private ExecutorService refresher;
+  private ConfigInvalidationListener invalidationListener = new ConfigInvalidationListener() {
+    @Override
+    public void invalidate(PluginConfigProvider provider) {
+      invalidate(provider, null);
+    }
 
+    @Override
+    public void invalidate(final PluginConfigProvider provider, String key) {
+      logger.debug("Configuration invalidated for provider: " + provider.getClass()
+          + (key != null ? ", key: " + key : ""));
+      // Configuration that can be cached is kept under the shared key, as in callProvider
+      final String providerKey = key != null && provider.canBeCached() ? SHARED_KEY : key;
+      Predicate<ProviderKey> filter = new Predicate<ProviderKey>() {
+        @Override
+        public boolean test(ProviderKey cached) {
+          return cached.provider == provider
+              && (providerKey == null || cached.key.equals(providerKey));
+        }
+      };
+      cachedConfigurations.removeAll(filter);
+      publishedConfigurations.removeAll(filter);
+      // All the cache keys include the shared version
+      versions.changed(providerKey != null ? providerKey : SHARED_KEY);
+    }
+  };
+  // set with setProviderExecutor; if null, providers run in an executor owned by this instance
+  private Executor providerExecutor;
+  private ExecutorService ownProviderExecutor;
+  private long providerBudget = 0;
+  private int providerMaxFailures = DEFAULT_PROVIDER_MAX_FAILURES;
+  private long providerCoolDown = DEFAULT_PROVIDER_COOL_DOWN;
+  private ExecutorService guardExecutor;
+  private Map<PluginConfigProvider, ProviderGuard<Map<String, JSONObject>>> providerGuards =
+      new ConcurrentHashMap<>();
+  // plugin configurations resulting from merging provider configurations
+  private ExpiringCache<MergeKey, Plugin> merges = new ExpiringCache<>(0, MAX_MERGES);
+  private ExpiringCache<String, MessageTemplate> templates =
+      new ExpiringCache<>(0, MAX_TEMPLATES);
+  // weak, so tables are dropped along with the bundles
+  private Map<ResourceBundle, Map<String, String>> messageTables =
+      Collections.synchronizedMap(new WeakHashMap<ResourceBundle, Map<String, String>>());
 
   public ConfigImpl(File configDir, List<PluginConfigProvider> configProviders,
       Set<Plugin> plugins, boolean useCache, int cacheTimeout) {
+    this(configDir, configProviders, plugins, useCache, cacheTimeout, 0);
+  }
+
+  /**
+   * @param maxStale maximum time, in seconds, expired values are used while they are read again in
+   *        the background. If negative or zero, expired values are read again when requested.
+   */
+  public ConfigImpl(File configDir, List<PluginConfigProvider> configProviders,
+      Set<Plugin> plugins, boolean useCache, int cacheTimeout, int maxStale) {
     this.configDir = configDir;
     this.plugins = plugins;
     this.useCache = useCache;
     this.configProviders = configProviders;
 
-    if (cacheTimeout > 0) {
-      int timeoutMillis = cacheTimeout * 1000;
-      new Timer(true).schedule(new TimerTask() {
+    // Each entry expires on its own, so there is no point in time where all the configuration
+    // needs to be read again at once
+    long ttl = cacheTimeout > 0 ? cacheTimeout * 1000L : 0;
+    this.ttl = ttl;
+    this.cachedConfigurations = new ExpiringCache<>(ttl, MAX_CACHED_CONFIGURATIONS);
+    this.publishedConfigurations = new ExpiringCache<>(0, MAX_CACHED_CONFIGURATIONS);
+    this.localeBundles = new ExpiringCache<>(ttl, MAX_CACHED_LOCALES);
+    this.properties = new ExpiringCache<>(ttl, 1);
+    this.versions = new KeyVersions<>(MAX_CACHED_CONFIGURATIONS, new ToLongFunction<Object>() {
+      @Override
+      public long applyAsLong(Object key) {
+        return getNextExpiry(key);
+      }
+    });
+
+    if (useCache && ttl > 0 && maxStale > 0) {
+      this.refresher = Executors.newSingleThreadExecutor(new ThreadFactory() {
         @Override
-        public void run() {
-          cachedConfigurations.clear();
-          localeBundles.clear();
-          properties = null;
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "geoladris-config-refresh");
+          thread.setDaemon(true);
+          return thread;
         }
-      }, timeoutMillis, timeoutMillis);
+      });
+      long maxStaleMillis = maxStale * 1000L;
+      this.cachedConfigurations.setRefreshAhead(this.refresher, maxStaleMillis);
+      this.localeBundles.setRefreshAhead(this.refresher, maxStaleMillis);
+      this.properties.setRefreshAhead(this.refresher, maxStaleMillis);
+    }
+
+    for (PluginConfigProvider provider : configProviders) {
+      provider.setInvalidationListener(this.invalidationListener);
     }
   }
 
@@ -75,60 +183,76 @@ public class ConfigImpl implements Config {
   @Override
   @SuppressWarnings("unchecked")
   public Map<String, String>[] getLanguages() {
-    try {
-      List<Map<String, String>> ret = new ArrayList<Map<String, String>>();
-      JSONObject json = JSONObject.fromObject(getProperty("languages"));
-      for (Object langCode : json.keySet()) {
-        Map<String, String> langObject = new HashMap<String, String>();
-        langObject.put("code", langCode.toString());
-        langObject.put("name", json.getString(langCode.toString()));
-
-        ret.add(langObject);
-      }
-      return ret.toArray(new Map[ret.size()]);
-    } catch (ConfigException e) {
-      return null;
-    }
+    List<Map<String, String>> languages = getLanguageList();
+    return languages != null ? languages.toArray(new Map[languages.size()]) : null;
   }
 
   @Override
-  public ResourceBundle getMessages(Locale locale) throws ConfigException {
-    ResourceBundle bundle = localeBundles.get(locale);
-    if (bundle == null || !useCache) {
-      bundle = getResourceBundle(locale);
+  public List<Map<String, String>> getLanguageList() {
+    return getPortalProperties().getLanguages();
+  }
+
+  @Override
+  public ResourceBundle getMessages(final Locale locale) throws ConfigException {
+    if (!useCache || locale == null) {
+      return getResourceBundle(locale);
+    }
+
+    try {
+      return localeBundles.get(locale, new ExpiringCache.Loader<ResourceBundle>() {
+        @Override
+        public ResourceBundle load() {
+          ResourceBundle bundle = getResourceBundle(locale);
+          versions.changed(locale);
+          return bundle;
+        }
+      });
+    } catch (IOException e) {
+      // ignore, the loader does not throw IOException
+      return null;
     }
-    return bundle;
   }
 
   private ResourceBundle getResourceBundle(Locale locale) {
-    try {
-      URL messagesDir = new File(getDir(), "messages").toURI().toURL();
-      URLClassLoader urlClassLoader = new URLClassLoader(new URL[] {messagesDir});
-      return ResourceBundle.getBundle("messages", locale, urlClassLoader);
-    } catch (MalformedURLException e) {
-      logger.error("Something is wrong with the configuration directory", e);
-      throw new ConfigException(e);
-    } catch (MissingResourceException e) {
-      logger.info("Missing locale bundle: " + locale);
-      try {
-        return new PropertyResourceBundle(new ByteArrayInputStream(new byte[0]));
-      } catch (IOException e1) {
-        // ignore, not an actual IO operation
-        return null;
-      }
+    MessageCatalog catalog = this.messageCatalog;
+    if (catalog == null) {
+      // Catalogs are cheap and only cache parsed files, so a duplicate on a race is harmless
+      catalog = new MessageCatalog(new File(getDir(), MESSAGES_DIR));
+      this.messageCatalog = catalog;
     }
+    return catalog.getBundle(locale);
   }
 
   @Override
   public Properties getProperties() {
-    if (this.properties == null || !this.useCache) {
-      this.properties = readProperties();
+    return getPortalProperties().getProperties();
+  }
+
+  /**
+   * @return the values of portal.properties, parsed once each time the file is read.
+   */
+  public PortalProperties getPortalProperties() {
+    if (!this.useCache) {
+      return new PortalProperties(readProperties());
+    }
+
+    try {
+      return this.properties.get(PORTAL_PROPERTIES, new ExpiringCache.Loader<PortalProperties>() {
+        @Override
+        public PortalProperties load() {
+          PortalProperties ret = new PortalProperties(readProperties());
+          versions.changed(SHARED_KEY);
+          return ret;
+        }
+      });
+    } catch (IOException e) {
+      // ignore, the loader does not throw IOException
+      return null;
     }
-    return properties;
   }
 
   private Properties readProperties() {
-    File file = new File(this.getDir(), "portal.properties");
+    File file = new File(this.getDir(), PORTAL_PROPERTIES);
     logger.debug("Reading portal properties file " + file);
     Properties properties = new Properties();
     try {
@@ -143,91 +267,129 @@ public class ConfigImpl implements Config {
 
   @Override
   public String[] getPropertyAsArray(String property) {
-    try {
-      return getProperty(property).split(",");
-    } catch (ConfigException e) {
-      return null;
-    }
+    List<String> values = getPropertyAsList(property);
+    return values != null ? values.toArray(new String[values.size()]) : null;
   }
 
-  private String getProperty(String propertyName) throws ConfigException {
-    Properties props = getProperties();
-    String value = props.getProperty(propertyName);
-    if (value != null) {
-      return value;
-    } else {
-      throw new ConfigException(
-          "No \"" + propertyName + "\" property in configuration. Conf folder: "
-              + configDir.getAbsolutePath() + ". Contents: " + props.keySet().size());
-    }
+  @Override
+  public List<String> getPropertyAsList(String property) {
+    return getPortalProperties().getList(property);
   }
 
   @Override
   public String getDefaultLang() {
-    try {
-      return getProperty(PROPERTY_DEFAULT_LANG);
-    } catch (ConfigException e) {
-      Map<String, String>[] langs = getLanguages();
-      if (langs != null && langs.length > 0) {
-        return langs[0].get("code");
-      } else {
-        return "en";
-      }
-    }
+    return getPortalProperties().getDefaultLang();
   }
 
   @Override
   public Plugin[] getPluginConfig(Locale locale, HttpServletRequest request) {
-    this.currentLocale = locale;
+    return getPluginConfig(new ConfigContext(locale, request));
+  }
 
-    // Get a map: name -> cloned plugin
-    Map<String, Plugin> namePluginMap = new HashMap<String, Plugin>();
-    for (Plugin plugin : this.plugins) {
-      Plugin clone = plugin.clonePlugin();
-      namePluginMap.put(clone.getName(), clone);
-    }
+  @Override
+  public Plugin[] getPluginConfig(ConfigContext context) {
+    return getPluginConfig(context, false);
+  }
 
-    // PortalRequestConfigurationImpl requestConfig = new PortalRequestConfigurationImpl(locale);
-    Map<String, JSONObject> pluginConfig = new HashMap<>();
+  @Override
+  public Plugin[] getSharedPluginConfig(HttpServletRequest request) {
+    return getPluginConfig(new ConfigContext(null, request), true);
+  }
 
-    // Get the providers configuration and merge it
+  private Plugin[] getPluginConfig(final ConfigContext context, boolean sharedOnly) {
+    HttpServletRequest request = context.getRequest();
+    Set<Plugin> plugins = this.plugins;
+    // Get a map: name -> plugin overlay. Sorted so that plugins are always returned in the same
+    // order
+    Map<String, Plugin> namePluginMap = new TreeMap<String, Plugin>();
+    for (Plugin plugin : plugins) {
+      Plugin overlay = plugin.createOverlay();
+      namePluginMap.put(overlay.getName(), overlay);
+    }
+
+    // Unqualified configuration of each plugin, as given to the providers. Plugins build it once
+    // for each change, and the map is only copied when a provider changes the configuration. The
+    // values are shared between requests; providers must not modify them
+    Map<String, JSONObject> currentConfig = new HashMap<>();
+    for (Plugin plugin : namePluginMap.values()) {
+      currentConfig.put(plugin.getName(), plugin.getUnqualifiedConfiguration());
+    }
+    currentConfig = Collections.unmodifiableMap(currentConfig);
+    // What the current configuration is built from: the plugins and the merged provider
+    // configurations. Used to tell whether the input of a provider changed
+    List<Object> currentInput = new ArrayList<>();
+    currentInput.add(new Identity(plugins));
+
+    // Get the providers configuration and merge it, in the order of the providers. Providers that
+    // ignore the current configuration run concurrently, as soon as the providers they depend on
+    // are done; the others wait for all the previous ones
+    List<PluginConfigProvider> providers = new ArrayList<>();
     for (PluginConfigProvider provider : this.configProviders) {
-      pluginConfig.clear();
-      for (Plugin plugin : namePluginMap.values()) {
-        JSONObject config = new JSONObject();
-        JSONObject c = plugin.getConfiguration();
-        for (Object key : c.keySet()) {
-          String unqualified = key.toString().substring(plugin.getName().length() + 1);
-          config.element(unqualified, c.get(key));
-        }
-        pluginConfig.put(plugin.getName(), config);
+      if (!sharedOnly || provider.canBeCached()) {
+        providers.add(provider);
       }
+    }
 
-      Map<String, JSONObject> providerConfig = cachedConfigurations.get(provider);
-      if (providerConfig == null || !useCache || !provider.canBeCached()) {
-        try {
-          providerConfig = provider.getPluginConfig(this, pluginConfig, request);
-          cachedConfigurations.put(provider, providerConfig);
-        } catch (IOException e) {
-          logger.info("Provider failed to contribute configuration: " + provider.getClass());
+    List<CompletableFuture<Map<String, JSONObject>>> results = new ArrayList<>();
+    // context for the providers running in other threads, which must not use the actual request
+    ConfigContext asyncContext = null;
+    // whether each result is reused between requests, so its merge can be reused too
+    boolean[] reused = new boolean[providers.size()];
+    int merged = 0;
+    for (int i = 0; i < providers.size(); i++) {
+      final PluginConfigProvider provider = providers.get(i);
+      reused[i] = getProviderKey(provider, request) != null;
+      if (!provider.ignoresCurrentConfig()) {
+        for (; merged < i; merged++) {
+          Map<String, JSONObject> result = join(results.get(merged));
+          currentConfig = merge(result, reused[merged], namePluginMap, currentConfig);
+          addInput(currentInput, result, reused[merged]);
         }
+        results.add(CompletableFuture.completedFuture(
+            callProvider(provider, currentConfig, currentInput, context)));
+        continue;
       }
 
-      if (providerConfig == null) {
-        continue;
+      List<CompletableFuture<Map<String, JSONObject>>> dependencies = new ArrayList<>();
+      Set<Class<? extends PluginConfigProvider>> dependencyTypes = provider.getDependencies();
+      for (int j = 0; j < i; j++) {
+        for (Class<? extends PluginConfigProvider> type : dependencyTypes) {
+          if (type.isInstance(providers.get(j))) {
+            dependencies.add(results.get(j));
+            break;
+          }
+        }
       }
 
-      // Merge the configuration in the result
-      for (String pluginName : providerConfig.keySet()) {
-        JSONObject pluginConf = providerConfig.get(pluginName);
-        Plugin plugin = namePluginMap.get(pluginName);
-        if (plugin == null) {
-          logger.warn("Configuration has been defined for a non-existing plugin: " + pluginName);
-        } else {
-          plugin.setConfiguration(pluginConf);
+      // Read-only and never modified afterwards, so it can be shared with other threads
+      final Map<String, JSONObject> pluginConfig = currentConfig;
+      boolean last = i == providers.size() - 1 || !providers.get(i + 1).ignoresCurrentConfig();
+      if (!last && asyncContext == null) {
+        asyncContext = detach(context);
+      }
+      if (last) {
+        // Nothing else to run meanwhile, so it runs in this thread
+        for (CompletableFuture<Map<String, JSONObject>> dependency : dependencies) {
+          join(dependency);
         }
+        results.add(CompletableFuture.completedFuture(
+            callProvider(provider, pluginConfig, null, context)));
+      } else {
+        final ConfigContext providerContext = asyncContext;
+        CompletableFuture<?>[] waitFor = dependencies.toArray(new CompletableFuture<?>[0]);
+        results.add(CompletableFuture.allOf(waitFor)
+            .thenApplyAsync(new Function<Void, Map<String, JSONObject>>() {
+              @Override
+              public Map<String, JSONObject> apply(Void v) {
+                return callProvider(provider, pluginConfig, null, providerContext);
+              }
+            }, getProviderExecutor()));
       }
     }
+    for (; merged < providers.size(); merged++) {
+      currentConfig =
+          merge(join(results.get(merged)), reused[merged], namePluginMap, currentConfig);
+    }
 
     // Get only enabled plugins
     List<Plugin> enabled = new ArrayList<>();
@@ -240,6 +402,307 @@ public class ConfigImpl implements Config {
     return enabled.toArray(new Plugin[enabled.size()]);
   }
 
+  /**
+   * @return a context with a copy of the request of the given one, to be used in other threads.
+   */
+  private static ConfigContext detach(ConfigContext context) {
+    HttpServletRequest request = context.getRequest();
+    if (request == null || request instanceof DetachedRequest) {
+      return context;
+    }
+    return new ConfigContext(context.getLocale(), new DetachedRequest(request));
+  }
+
+  /**
+   * Adds a merged provider configuration to the input of the next providers. Reused
+   * configurations are the same instance until they change, so they are compared by identity;
+   * the others by content.
+   */
+  private static void addInput(List<Object> input, Map<String, JSONObject> providerConfig,
+      boolean reused) {
+    if (providerConfig != null && !providerConfig.isEmpty()) {
+      input.add(reused ? new Identity(providerConfig) : providerConfig);
+    }
+  }
+
+  /**
+   * @param input what the current configuration is built from; null if the provider ignores it.
+   * @return the configuration of the provider; its last successful configuration for the same key
+   *         if it fails, or null if there is none.
+   */
+  private Map<String, JSONObject> callProvider(final PluginConfigProvider provider,
+      final Map<String, JSONObject> pluginConfig, List<Object> input,
+      ConfigContext context) {
+    final ProviderGuard<Map<String, JSONObject>> guard = getProviderGuard(provider);
+    // Results are kept for the same keys as in the cache, even if the cache is disabled
+    final String guardKey =
+        provider.canBeCached() ? SHARED_KEY : provider.getCacheKey(context.getRequest());
+    String key = this.useCache ? guardKey : null;
+    ExpiringCache.Loader<Map<String, JSONObject>> loader =
+        getLoader(provider, guard, guardKey, pluginConfig, context);
+
+    try {
+      if (key != null) {
+        ExpiringCache<ProviderKey, Map<String, JSONObject>> cache =
+            provider.publishesInvalidations() ? publishedConfigurations : cachedConfigurations;
+        // Providers reading the current configuration are called again only if it changes
+        // Only request-independent configuration is refreshed in the background; the request is
+        // recycled once it is done, so it must not be used then
+        ExpiringCache.Loader<Map<String, JSONObject>> refresher = provider.canBeCached()
+            ? getLoader(provider, guard, guardKey, pluginConfig,
+                new ConfigContext(context.getLocale(), null))
+            : null;
+        return cache.get(new ProviderKey(provider, key, input), loader, refresher);
+      } else {
+        return loader.load();
+      }
+    } catch (ProviderGuard.CircuitOpenException e) {
+      // Logged by the guard when the circuit opens
+      return guard.getLastGood(guardKey);
+    } catch (IOException e) {
+      logger.warn("Provider failed to contribute configuration: " + provider.getClass() + ": "
+          + e.getMessage());
+      return guard.getLastGood(guardKey);
+    }
+  }
+
+  private ExpiringCache.Loader<Map<String, JSONObject>> getLoader(
+      final PluginConfigProvider provider, final ProviderGuard<Map<String, JSONObject>> guard,
+      final String guardKey, final Map<String, JSONObject> pluginConfig,
+      final ConfigContext context) {
+    return new ExpiringCache.Loader<Map<String, JSONObject>>() {
+      @Override
+      public Map<String, JSONObject> load() throws IOException {
+        Map<String, JSONObject> ret =
+            guard.call(guardKey, new ExpiringCache.Loader<Map<String, JSONObject>>() {
+              @Override
+              public Map<String, JSONObject> load() throws IOException {
+                // For localize(String), in the thread calling the provider
+                ConfigContext previous = currentContext.get();
+                currentContext.set(context);
+                try {
+                  return provider.getPluginConfig(ConfigImpl.this, pluginConfig,
+                      context.getRequest());
+                } finally {
+                  if (previous != null) {
+                    currentContext.set(previous);
+                  } else {
+                    currentContext.remove();
+                  }
+                }
+              }
+            });
+        if (useCache && guardKey != null) {
+          versions.changed(guardKey);
+        }
+        return ret;
+      }
+    };
+  }
+
+  /**
+   * @return the guard with the time budget, circuit breaker, last successful results and metrics of
+   *         the provider.
+   */
+  public ProviderGuard<Map<String, JSONObject>> getProviderGuard(PluginConfigProvider provider) {
+    ProviderGuard<Map<String, JSONObject>> guard = this.providerGuards.get(provider);
+    if (guard == null) {
+      guard = new ProviderGuard<>(provider.getClass().getName(), this.providerBudget,
+          this.providerMaxFailures, this.providerCoolDown, getGuardExecutor(),
+          MAX_CACHED_CONFIGURATIONS);
+      ProviderGuard<Map<String, JSONObject>> previous =
+          this.providerGuards.putIfAbsent(provider, guard);
+      if (previous != null) {
+        guard = previous;
+      }
+    }
+    return guard;
+  }
+
+  private synchronized Executor getProviderExecutor() {
+    if (this.providerExecutor != null) {
+      return this.providerExecutor;
+    }
+    if (this.ownProviderExecutor == null) {
+      // Providers may block on I/O, so they do not run in the common pool. When all the threads
+      // are busy and the queue is full, providers run in the thread building the configuration
+      ThreadPoolExecutor executor = new ThreadPoolExecutor(PROVIDER_THREADS, PROVIDER_THREADS, 60,
+          TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(MAX_QUEUED_PROVIDERS),
+          new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+              Thread thread = new Thread(r, "geoladris-config-provider-async");
+              thread.setDaemon(true);
+              return thread;
+            }
+          }, new RejectedExecutionHandler() {
+            @Override
+            public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+              // Also once shut down, so the configuration being built never waits forever
+              r.run();
+            }
+          });
+      executor.allowCoreThreadTimeOut(true);
+      this.ownProviderExecutor = executor;
+    }
+    return this.ownProviderExecutor;
+  }
+
+  private synchronized ExecutorService getGuardExecutor() {
+    if (this.guardExecutor == null && this.providerBudget > 0) {
+      // Calls exceeding the budget may keep their thread, so the number of threads is bounded;
+      // once all of them are busy, calls are rejected and fail
+      ThreadPoolExecutor executor = new ThreadPoolExecutor(GUARD_THREADS, GUARD_THREADS, 60,
+          TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+              Thread thread = new Thread(r, "geoladris-config-provider");
+              thread.setDaemon(true);
+              return thread;
+            }
+          });
+      executor.allowCoreThreadTimeOut(true);
+      this.guardExecutor = executor;
+    }
+    return this.guardExecutor;
+  }
+
+  /**
+   * Sets the provider configuration in the plugins.
+   *
+   * @param reused true if the provider configuration is reused between requests, so the result of
+   *        merging it can be reused as well.
+   * @return the new current configuration.
+   */
+  private Map<String, JSONObject> merge(Map<String, JSONObject> providerConfig, boolean reused,
+      Map<String, Plugin> namePluginMap, Map<String, JSONObject> currentConfig) {
+    if (providerConfig == null || providerConfig.isEmpty()) {
+      return currentConfig;
+    }
+
+    Map<String, JSONObject> nextConfig = new HashMap<>(currentConfig);
+    for (String pluginName : providerConfig.keySet()) {
+      JSONObject pluginConf = providerConfig.get(pluginName);
+      Plugin plugin = namePluginMap.get(pluginName);
+      if (plugin == null) {
+        logger.warn("Configuration has been defined for a non-existing plugin: " + pluginName);
+      } else if (reused) {
+        MergeKey key = new MergeKey(plugin, pluginConf);
+        Plugin result = this.merges.get(key);
+        if (result == null) {
+          plugin.setConfiguration(pluginConf);
+          result = plugin.createOverlay();
+          result.shareConfiguration(plugin);
+          this.merges.put(key, result);
+        } else {
+          plugin.shareConfiguration(result);
+        }
+        nextConfig.put(pluginName, plugin.getUnqualifiedConfiguration());
+      } else {
+        plugin.setConfiguration(pluginConf);
+        nextConfig.put(pluginName, plugin.getUnqualifiedConfiguration());
+      }
+    }
+    return Collections.unmodifiableMap(nextConfig);
+  }
+
+  private static <T> T join(CompletableFuture<T> future) {
+    try {
+      return future.join();
+    } catch (CompletionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw e;
+    }
+  }
+
+  @Override
+  public String getCacheKey(Locale locale, HttpServletRequest request) {
+    return getCacheKey(new ConfigContext(locale, request));
+  }
+
+  @Override
+  public String getCacheKey(ConfigContext context) {
+    Locale locale = context.getLocale();
+    HttpServletRequest request = context.getRequest();
+    if (!this.useCache) {
+      return null;
+    }
+    StringBuilder providerKeys = new StringBuilder();
+    for (PluginConfigProvider provider : this.configProviders) {
+      String key = getProviderKey(provider, request);
+      if (key == null) {
+        return null;
+      } else if (!provider.canBeCached()) {
+        providerKeys.append('|').append(key).append('@').append(this.versions.get(key));
+      }
+    }
+    return getSharedCacheKey() + "-" + this.versions.get(locale) + ":" + locale + providerKeys;
+  }
+
+  /**
+   * @return the key to cache the provider configuration for the request, or null if it cannot be
+   *         cached.
+   */
+  private String getProviderKey(PluginConfigProvider provider, HttpServletRequest request) {
+    if (!this.useCache) {
+      return null;
+    }
+    return provider.canBeCached() ? SHARED_KEY : provider.getCacheKey(request);
+  }
+
+  @Override
+  public String getSharedCacheKey() {
+    if (!this.useCache) {
+      return null;
+    }
+    return this.generation.get() + "." + this.versions.get(SHARED_KEY);
+  }
+
+  /**
+   * @return the earliest time, in milliseconds, a cached value with the given provider key or
+   *         locale expires.
+   */
+  private long getNextExpiry(final Object key) {
+    long next;
+    if (key instanceof Locale) {
+      next = this.localeBundles.getNextExpiry(new Predicate<Locale>() {
+        @Override
+        public boolean test(Locale locale) {
+          return locale.equals(key);
+        }
+      });
+    } else {
+      next = this.cachedConfigurations.getNextExpiry(new Predicate<ProviderKey>() {
+        @Override
+        public boolean test(ProviderKey providerKey) {
+          return providerKey.key.equals(key);
+        }
+      });
+      if (SHARED_KEY.equals(key)) {
+        next = Math.min(next, this.properties.getNextExpiry(new Predicate<String>() {
+          @Override
+          public boolean test(String name) {
+            return true;
+          }
+        }));
+      }
+    }
+    // Values being loaded are not cached yet
+    return this.ttl > 0 ? Math.min(next, System.currentTimeMillis() + this.ttl) : next;
+  }
+
+  /**
+   * @return the cache of the provider configurations, for monitoring.
+   */
+  public ExpiringCache<?, Map<String, JSONObject>> getProviderCache() {
+    return this.cachedConfigurations;
+  }
+
   @Override
   public File getNoJavaPluginRoot() {
     return new File(getDir(), "plugins");
@@ -248,11 +711,97 @@ public class ConfigImpl implements Config {
   @Override
   public void setPlugins(Set<Plugin> plugins) {
     this.plugins = plugins;
+    this.generation.incrementAndGet();
+  }
+
+  /**
+   * Sets the limits for the provider calls. Only applies to providers that have not been called
+   * yet.
+   *
+   * @param budget maximum time of a provider call, in milliseconds. If negative or zero (the
+   *        default), calls have no time limit.
+   * @param maxFailures consecutive failures after which a provider is not called for the cool-down
+   *        period. If negative or zero, providers are always called. 5 by default.
+   * @param coolDown time, in milliseconds, failing providers are not called. 30 seconds by default.
+   */
+  public void setProviderLimits(long budget, int maxFailures, long coolDown) {
+    this.providerBudget = budget;
+    this.providerMaxFailures = maxFailures;
+    this.providerCoolDown = coolDown;
+  }
+
+  /**
+   * @param executor executor for the providers that run concurrently. By default, a bounded pool
+   *        owned by this instance and shut down on {@link #close()}. Executors set here are not
+   *        shut down.
+   */
+  public synchronized void setProviderExecutor(Executor executor) {
+    this.providerExecutor = executor;
   }
 
   @Override
   public void addPluginConfigProvider(PluginConfigProvider provider) {
     this.configProviders.add(provider);
+    provider.setInvalidationListener(this.invalidationListener);
+    if (this.watcher != null && provider instanceof FileConfigProvider) {
+      watch((FileConfigProvider) provider);
+    }
+  }
+
+  /**
+   * Drops cached values as soon as the files they have been read from change: portal.properties,
+   * the message bundles and the files of any {@link FileConfigProvider}. This way, the cache does
+   * not need to expire to get the changes.
+   */
+  public void watch(FileChangeWatcher watcher) throws IOException {
+    this.watcher = watcher;
+    watcher.watch(new File(getDir(), PORTAL_PROPERTIES), new Runnable() {
+      @Override
+      public void run() {
+        logger.debug("portal.properties changed");
+        properties.clear();
+        versions.changed(SHARED_KEY);
+      }
+    });
+    watcher.watch(new File(getDir(), MESSAGES_DIR), new Runnable() {
+      @Override
+      public void run() {
+        logger.debug("Messages changed");
+        localeBundles.clear();
+        versions.changedAll(new Predicate<Object>() {
+          @Override
+          public boolean test(Object key) {
+            return key instanceof Locale;
+          }
+        });
+      }
+    });
+    for (PluginConfigProvider provider : this.configProviders) {
+      if (provider instanceof FileConfigProvider) {
+        watch((FileConfigProvider) provider);
+      }
+    }
+  }
+
+  private void watch(final FileConfigProvider provider) {
+    Runnable action = new Runnable() {
+      @Override
+      public void run() {
+        logger.debug("Configuration changed for provider: " + provider.getClass());
+        provider.filesChanged();
+        invalidationListener.invalidate(provider);
+      }
+    };
+
+    try {
+      for (File file : provider.getFiles(this)) {
+        this.watcher.watch(file, action);
+      }
+      provider.setWatched(true);
+    } catch (IOException e) {
+      logger.warn("Cannot watch configuration files for provider: " + provider.getClass()
+          + ". Changes will be applied when the cache expires", e);
+    }
   }
 
   @Override
@@ -261,21 +810,146 @@ public class ConfigImpl implements Config {
   }
 
   @Override
+  public synchronized void close() {
+    if (this.refresher != null) {
+      this.refresher.shutdownNow();
+    }
+    if (this.guardExecutor != null) {
+      this.guardExecutor.shutdownNow();
+    }
+    if (this.ownProviderExecutor != null) {
+      this.ownProviderExecutor.shutdownNow();
+    }
+  }
+
+  @Override
+  @Deprecated
   public String localize(String template) {
-    Pattern patt = Pattern.compile("\\$\\{([\\w.]*)\\}");
-    Matcher m = patt.matcher(template);
-    StringBuffer sb = new StringBuffer(template.length());
-    ResourceBundle messages = getMessages(this.currentLocale);
-    while (m.find()) {
-      String text;
-      try {
-        text = messages.getString(m.group(1));
-        m.appendReplacement(sb, text);
-      } catch (MissingResourceException e) {
-        // do not replace
+    ConfigContext context = currentContext.get();
+    if (context == null || context.getLocale() == null) {
+      context = new ConfigContext(new Locale(getDefaultLang()), null);
+    }
+    return localize(template, context);
+  }
+
+  @Override
+  public String localize(String template, ConfigContext context) {
+    MessageTemplate compiled = this.templates.get(template);
+    if (compiled == null) {
+      compiled = MessageTemplate.compile(template);
+      this.templates.put(template, compiled);
+    }
+    return compiled.render(getMessageTable(context.getLocale()));
+  }
+
+  /**
+   * @return all the messages for the locale, built once for each bundle.
+   */
+  private Map<String, String> getMessageTable(Locale locale) {
+    ResourceBundle bundle = getMessages(locale);
+    Map<String, String> table = this.messageTables.get(bundle);
+    if (table == null) {
+      table = new HashMap<>();
+      for (String key : bundle.keySet()) {
+        Object message = bundle.getObject(key);
+        if (message instanceof String) {
+          table.put(key, (String) message);
+        }
       }
+      this.messageTables.put(bundle, table);
+    }
+    return table;
+  }
+
+  private static class ProviderKey {
+    private final PluginConfigProvider provider;
+    private final String key;
+    // what the configuration given to the provider is built from; null if the provider ignores it
+    private final List<Object> input;
+    private final int hash;
+
+    private ProviderKey(PluginConfigProvider provider, String key, List<Object> input) {
+      this.provider = provider;
+      this.key = key;
+      this.input = input != null ? new ArrayList<>(input) : null;
+      this.hash = (System.identityHashCode(provider) * 31 + key.hashCode()) * 31
+          + (input != null ? input.hashCode() : 0);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof ProviderKey)) {
+        return false;
+      }
+      ProviderKey other = (ProviderKey) obj;
+      return this.provider == other.provider && this.hash == other.hash
+          && this.key.equals(other.key) && Objects.equals(this.input, other.input);
+    }
+
+    @Override
+    public int hashCode() {
+      return this.hash;
+    }
+
+    @Override
+    public String toString() {
+      return this.provider.getClass().getName() + "#" + this.key;
+    }
+  }
+
+  /**
+   * Compares an object by identity.
+   */
+  private static class Identity {
+    private final Object object;
+
+    private Identity(Object object) {
+      this.object = object;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      return obj instanceof Identity && ((Identity) obj).object == this.object;
+    }
+
+    @Override
+    public int hashCode() {
+      return System.identityHashCode(this.object);
+    }
+  }
+
+  /**
+   * Identifies merging a provider configuration into a plugin configuration, by identity, since
+   * both are shared between requests while they do not change.
+   */
+  private static class MergeKey {
+    private final String plugin;
+    private final JSONObject configuration;
+    private final boolean enabled;
+    private final JSONObject providerConfiguration;
+
+    private MergeKey(Plugin plugin, JSONObject providerConfiguration) {
+      this.plugin = plugin.getName();
+      this.configuration = plugin.getConfiguration();
+      this.enabled = plugin.isEnabled();
+      this.providerConfiguration = providerConfiguration;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof MergeKey)) {
+        return false;
+      }
+      MergeKey other = (MergeKey) obj;
+      return this.configuration == other.configuration
+          && this.providerConfiguration == other.providerConfiguration
+          && this.enabled == other.enabled && this.plugin.equals(other.plugin);
+    }
+
+    @Override
+    public int hashCode() {
+      return (this.plugin.hashCode() * 31 + System.identityHashCode(this.configuration)) * 31
+          + System.identityHashCode(this.providerConfiguration) + (this.enabled ? 1 : 0);
     }
-    m.appendTail(sb);
-    return sb.toString();
   }
 }
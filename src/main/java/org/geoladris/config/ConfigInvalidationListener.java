@@ -0,0 +1,18 @@
+package org.geoladris.config;
+
+/**
+ * Receives the changes published by {@link PluginConfigProvider} instances, so that their cached
+ * configuration is dropped as soon as it changes instead of when the cache expires.
+ */
+public interface ConfigInvalidationListener {
+  /**
+   * All the configuration of the provider has changed.
+   */
+  void invalidate(PluginConfigProvider provider);
+
+  /**
+   * The configuration of the provider has changed only for the given key, as returned by
+   * {@link PluginConfigProvider#getCacheKey(javax.servlet.http.HttpServletRequest)}.
+   */
+  void invalidate(PluginConfigProvider provider, String key);
+}
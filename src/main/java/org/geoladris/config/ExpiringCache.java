@@ -0,0 +1,402 @@
+package org.geoladris.config;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+import org.apache.log4j.Logger;
+
+/**
+ * <p>
+ * Thread-safe cache where each entry expires a fixed time after it has been put, so entries do not
+ * expire all at the same time. When the cache is full, the least recently used entry is evicted.
+ * </p>
+ *
+ * <p>
+ * With {@link #setRefreshAhead(Executor, long)}, {@link #get(Object, Loader)} keeps returning
+ * expired entries for a limited time while they are loaded again in the background, so callers do
+ * not wait for the value to be loaded.
+ * </p>
+ *
+ * <p>
+ * The cache keeps hit, miss, coalesced miss, eviction, expiration and refresh counts, and a version
+ * that changes every time an entry is dropped or refreshed, so anything built from the cached
+ * values can tell whether it is outdated.
+ * </p>
+ *
+ * <p>
+ * Values loaded while entries are removed ({@link #remove(Object)}, {@link #removeAll(Predicate)}
+ * or {@link #clear()}) are returned to their callers but not cached, since they may have been
+ * built from the data that has just been invalidated.
+ * </p>
+ *
+ * @param <K> key type.
+ * @param <V> value type.
+ */
+public class ExpiringCache<K, V> {
+  private static final Logger logger = Logger.getLogger(ExpiringCache.class);
+
+  private final long ttl;
+  private final int maxSize;
+  private Executor refresher;
+  private long maxStale;
+
+  private final Map<K, Entry<V>> entries = new ConcurrentHashMap<>();
+  private final SingleFlight<K, V> loads = new SingleFlight<>();
+  private final AtomicLong version = new AtomicLong();
+  // changes on every removal, so loads started before it are not cached
+  private final AtomicLong invalidations = new AtomicLong();
+  private final AtomicLong hits = new AtomicLong(), misses = new AtomicLong(),
+      staleHits = new AtomicLong(), evictions = new AtomicLong(), expirations = new AtomicLong(),
+      refreshes = new AtomicLong(), refreshTime = new AtomicLong(),
+      maxRefreshTime = new AtomicLong();
+
+  /**
+   * Loads the value of an entry.
+   */
+  public interface Loader<V> {
+    /**
+     * @return the value, or null if there is no value; null values are not cached.
+     */
+    V load() throws IOException;
+  }
+
+  private static class Entry<V> {
+    private final V value;
+    private final long expiresAt;
+    private final AtomicBoolean refreshing = new AtomicBoolean();
+    private volatile long lastAccess;
+
+    private Entry(V value, long expiresAt, long now) {
+      this.value = value;
+      this.expiresAt = expiresAt;
+      this.lastAccess = now;
+    }
+
+    private boolean isExpired(long now) {
+      return this.expiresAt >= 0 && now >= this.expiresAt;
+    }
+  }
+
+  /**
+   * @param ttl time to live of the entries, in milliseconds. If negative or zero, entries do not
+   *        expire.
+   * @param maxSize maximum number of entries.
+   */
+  public ExpiringCache(long ttl, int maxSize) {
+    this.ttl = ttl;
+    this.maxSize = maxSize;
+  }
+
+  /**
+   * Enables refreshing expired entries in the background.
+   *
+   * @param refresher executor for the refresh tasks.
+   * @param maxStale maximum time, in milliseconds, an expired entry can be returned while it is
+   *        being refreshed. Once exceeded, entries are loaded again by the caller.
+   */
+  public void setRefreshAhead(Executor refresher, long maxStale) {
+    this.refresher = refresher;
+    this.maxStale = maxStale;
+  }
+
+  private boolean isDead(Entry<V> entry, long now) {
+    return entry.isExpired(now - (this.refresher != null ? this.maxStale : 0));
+  }
+
+  private Entry<V> lookup(K key, long now) {
+    Entry<V> entry = this.entries.get(key);
+    if (entry != null && isDead(entry, now)) {
+      if (this.entries.remove(key, entry)) {
+        this.expirations.incrementAndGet();
+        this.version.incrementAndGet();
+      }
+      return null;
+    }
+    return entry;
+  }
+
+  /**
+   * @return the cached value, or null if there is no value for the key or it has expired.
+   */
+  public V get(K key) {
+    long now = now();
+    Entry<V> entry = lookup(key, now);
+    if (entry == null || entry.isExpired(now)) {
+      this.misses.incrementAndGet();
+      return null;
+    }
+
+    entry.lastAccess = now;
+    this.hits.incrementAndGet();
+    return entry.value;
+  }
+
+  /**
+   * Returns the cached value or loads it if there is no value for the key. Concurrent calls for the
+   * same missing key wait for a single load. If refreshing ahead, expired values are returned while
+   * they are loaded again in the background with the same loader.
+   *
+   * @return the value; null if the loader returns null.
+   * @throws IOException if the value cannot be loaded.
+   */
+  public V get(final K key, final Loader<V> loader) throws IOException {
+    return get(key, loader, loader);
+  }
+
+  /**
+   * Same as {@link #get(Object, Loader)}, with a different loader for the background refresh.
+   *
+   * @param refresher loader used in the background, once the caller has returned; null if the value
+   *        cannot be loaded in the background, so expired values are always loaded by the caller.
+   */
+  public V get(final K key, final Loader<V> loader, Loader<V> refresher) throws IOException {
+    long now = now();
+    Entry<V> entry = lookup(key, now);
+    if (entry != null) {
+      entry.lastAccess = now;
+      if (!entry.isExpired(now)) {
+        this.hits.incrementAndGet();
+        return entry.value;
+      }
+      if (this.refresher != null && refresher != null) {
+        this.staleHits.incrementAndGet();
+        refresh(key, entry, refresher);
+        return entry.value;
+      }
+    }
+
+    this.misses.incrementAndGet();
+    return this.loads.load(key, new Loader<V>() {
+      @Override
+      public V load() throws IOException {
+        // Loaded by another caller since the lookup
+        Entry<V> entry = entries.get(key);
+        if (entry != null && !entry.isExpired(now())) {
+          return entry.value;
+        }
+
+        long generation = invalidations.get();
+        V value = loader.load();
+        if (value != null && invalidations.get() == generation) {
+          put(key, value);
+        }
+        return value;
+      }
+    });
+  }
+
+  private void refresh(final K key, final Entry<V> entry, final Loader<V> loader) {
+    if (!entry.refreshing.compareAndSet(false, true)) {
+      return;
+    }
+
+    try {
+      this.refresher.execute(new Runnable() {
+        @Override
+        public void run() {
+          long start = System.nanoTime();
+          try {
+            V value = loader.load();
+            if (value != null && entries.replace(key, entry, newEntry(value, now()))) {
+              version.incrementAndGet();
+            }
+          } catch (IOException | RuntimeException e) {
+            logger.info("Cannot refresh cache entry " + key + ". Keeping the expired value", e);
+          } finally {
+            long time = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            refreshes.incrementAndGet();
+            refreshTime.addAndGet(time);
+            if (time > maxRefreshTime.get()) {
+              maxRefreshTime.set(time);
+            }
+            entry.refreshing.set(false);
+          }
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      entry.refreshing.set(false);
+    }
+  }
+
+  private Entry<V> newEntry(V value, long now) {
+    return new Entry<V>(value, this.ttl > 0 ? now + this.ttl : -1, now);
+  }
+
+  public void put(K key, V value) {
+    if (this.entries.put(key, newEntry(value, now())) != null) {
+      this.version.incrementAndGet();
+    }
+    if (this.entries.size() > this.maxSize) {
+      evict();
+    }
+  }
+
+  public void remove(final K key) {
+    invalidate(new Predicate<K>() {
+      @Override
+      public boolean test(K k) {
+        return k.equals(key);
+      }
+    });
+    if (this.entries.remove(key) != null) {
+      this.version.incrementAndGet();
+    }
+  }
+
+  /**
+   * Removes all the entries whose key matches the given filter. Loads in progress for those keys
+   * are not cached and later callers load the values again.
+   */
+  public void removeAll(Predicate<K> filter) {
+    invalidate(filter);
+    Iterator<K> iterator = this.entries.keySet().iterator();
+    while (iterator.hasNext()) {
+      if (filter.test(iterator.next())) {
+        iterator.remove();
+        this.version.incrementAndGet();
+      }
+    }
+  }
+
+  public void clear() {
+    invalidate(new Predicate<K>() {
+      @Override
+      public boolean test(K key) {
+        return true;
+      }
+    });
+    this.entries.clear();
+    this.version.incrementAndGet();
+  }
+
+  private void invalidate(Predicate<K> filter) {
+    this.invalidations.incrementAndGet();
+    this.loads.forgetAll(filter);
+  }
+
+  private void evict() {
+    removeExpired();
+    while (this.entries.size() > this.maxSize) {
+      K eldest = null;
+      long eldestAccess = Long.MAX_VALUE;
+      for (Map.Entry<K, Entry<V>> entry : this.entries.entrySet()) {
+        if (entry.getValue().lastAccess < eldestAccess) {
+          eldest = entry.getKey();
+          eldestAccess = entry.getValue().lastAccess;
+        }
+      }
+      if (eldest != null && this.entries.remove(eldest) != null) {
+        this.evictions.incrementAndGet();
+        this.version.incrementAndGet();
+      }
+    }
+  }
+
+  private void removeExpired() {
+    long now = now();
+    Iterator<Entry<V>> iterator = this.entries.values().iterator();
+    while (iterator.hasNext()) {
+      if (isDead(iterator.next(), now)) {
+        iterator.remove();
+        this.expirations.incrementAndGet();
+        this.version.incrementAndGet();
+      }
+    }
+  }
+
+  /**
+   * @return a number that changes every time an entry is replaced, refreshed, removed, evicted or
+   *         expires. Expired entries are only dropped when they are read or on eviction; see
+   *         {@link #getNextExpiry(Predicate)} to tell when they expire.
+   */
+  public long getVersion() {
+    return this.version.get();
+  }
+
+  /**
+   * @return the earliest time, in milliseconds, a cached entry whose key matches the filter
+   *         expires, ignoring the entries that already expired; {@link Long#MAX_VALUE} if none
+   *         expires.
+   */
+  public long getNextExpiry(Predicate<K> filter) {
+    long now = now();
+    long next = Long.MAX_VALUE;
+    for (Map.Entry<K, Entry<V>> entry : this.entries.entrySet()) {
+      long expiresAt = entry.getValue().expiresAt;
+      if (expiresAt > now && expiresAt < next && filter.test(entry.getKey())) {
+        next = expiresAt;
+      }
+    }
+    return next;
+  }
+
+  public int size() {
+    return this.entries.size();
+  }
+
+  public long getHits() {
+    return this.hits.get();
+  }
+
+  public long getMisses() {
+    return this.misses.get();
+  }
+
+  /**
+   * @return number of times an expired value has been returned while being refreshed.
+   */
+  public long getStaleHits() {
+    return this.staleHits.get();
+  }
+
+  /**
+   * @return number of misses that waited for the load of another caller.
+   */
+  public long getCoalescedMisses() {
+    return this.loads.getCoalesced();
+  }
+
+  public long getEvictions() {
+    return this.evictions.get();
+  }
+
+  public long getExpirations() {
+    return this.expirations.get();
+  }
+
+  /**
+   * @return number of background refreshes, successful or not.
+   */
+  public long getRefreshes() {
+    return this.refreshes.get();
+  }
+
+  /**
+   * @return total time spent in background refreshes, in milliseconds.
+   */
+  public long getRefreshTime() {
+    return this.refreshTime.get();
+  }
+
+  /**
+   * @return longest background refresh, in milliseconds.
+   */
+  public long getMaxRefreshTime() {
+    return this.maxRefreshTime.get();
+  }
+
+  /**
+   * For testing purposes
+   */
+  long now() {
+    return System.currentTimeMillis();
+  }
+}
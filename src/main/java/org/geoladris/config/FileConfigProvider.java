@@ -0,0 +1,26 @@
+package org.geoladris.config;
+
+import java.io.File;
+
+/**
+ * {@link PluginConfigProvider} that reads the configuration from files, so that the cached
+ * configuration is dropped only when those files change.
+ */
+public interface FileConfigProvider extends PluginConfigProvider {
+  /**
+   * @return files or directories with the configuration. They do not need to exist.
+   */
+  File[] getFiles(Config config);
+
+  /**
+   * Called when the files returned by {@link #getFiles(Config)} are being watched for changes. From
+   * then on, the provider can keep what it reads from the files until {@link #filesChanged()} is
+   * called.
+   */
+  void setWatched(boolean watched);
+
+  /**
+   * Called when any of the files returned by {@link #getFiles(Config)} changes.
+   */
+  void filesChanged();
+}
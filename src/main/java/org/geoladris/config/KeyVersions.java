@@ -0,0 +1,81 @@
+package org.geoladris.config;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+import java.util.function.ToLongFunction;
+
+/**
+ * <p>
+ * Versions of cached values by key, so anything built from the values of a key can tell whether it
+ * is outdated without affecting the other keys. A version changes when the values of its key are
+ * loaded again, invalidated or expire.
+ * </p>
+ *
+ * <p>
+ * Versions are never reused, even if the version of a key is dropped because there are too many
+ * keys, so an outdated version never matches again.
+ * </p>
+ *
+ * @param <K> key type.
+ */
+public class KeyVersions<K> {
+  private final AtomicLong counter = new AtomicLong();
+  private final ExpiringCache<K, Version> versions;
+  private final ToLongFunction<K> expiry;
+
+  private static class Version {
+    private final long number;
+    private final long validUntil;
+
+    private Version(long number, long validUntil) {
+      this.number = number;
+      this.validUntil = validUntil;
+    }
+  }
+
+  /**
+   * @param maxKeys maximum number of versions kept.
+   * @param expiry the earliest time, in milliseconds, a cached value of the key expires;
+   *        {@link Long#MAX_VALUE} if they do not expire.
+   */
+  public KeyVersions(int maxKeys, ToLongFunction<K> expiry) {
+    this.versions = new ExpiringCache<>(0, maxKeys);
+    this.expiry = expiry;
+  }
+
+  /**
+   * @return the version of the values of the key.
+   */
+  public long get(K key) {
+    Version version = this.versions.get(key);
+    if (version == null || now() >= version.validUntil) {
+      version = renew(key);
+    }
+    return version.number;
+  }
+
+  /**
+   * Changes the version of the key, because its values have been loaded again or dropped.
+   */
+  public void changed(K key) {
+    renew(key);
+  }
+
+  private Version renew(K key) {
+    Version version = new Version(this.counter.incrementAndGet(), this.expiry.applyAsLong(key));
+    this.versions.put(key, version);
+    return version;
+  }
+
+  /**
+   * Changes the version of all the keys matching the filter.
+   */
+  public void changedAll(Predicate<K> filter) {
+    // A new version is created when they are requested again
+    this.versions.removeAll(filter);
+  }
+
+  long now() {
+    return System.currentTimeMillis();
+  }
+}
@@ -0,0 +1,170 @@
+package org.geoladris.config;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PropertyResourceBundle;
+import java.util.ResourceBundle;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Logger;
+
+/**
+ * <p>
+ * Reads the <code>messages*.properties</code> bundles from a directory, without class loaders, so
+ * nothing is kept in the JDK bundle cache.
+ * </p>
+ *
+ * <p>
+ * Bundles are resolved as {@link ResourceBundle#getBundle(String, Locale)} does: from the most
+ * specific locale to the base bundle, falling back to the default locale when there is no bundle
+ * for the locale. Each file is parsed once and read again only when its modification time or size
+ * change.
+ * </p>
+ */
+public class MessageCatalog {
+  private static final Logger logger = Logger.getLogger(MessageCatalog.class);
+
+  private static final String BASE_NAME = "messages";
+  private static final String EXTENSION = ".properties";
+
+  private final File dir;
+  private final Map<String, CatalogFile> files = new ConcurrentHashMap<>();
+
+  private static class CatalogFile {
+    private final long lastModified, length;
+    private final Map<String, String> messages;
+
+    private CatalogFile(long lastModified, long length, Map<String, String> messages) {
+      this.lastModified = lastModified;
+      this.length = length;
+      this.messages = messages;
+    }
+  }
+
+  private static class CatalogBundle extends ResourceBundle {
+    private final Map<String, String> messages;
+
+    private CatalogBundle(Map<String, String> messages, ResourceBundle parent) {
+      this.messages = messages;
+      setParent(parent);
+    }
+
+    @Override
+    protected Object handleGetObject(String key) {
+      return this.messages.get(key);
+    }
+
+    @Override
+    protected Set<String> handleKeySet() {
+      return this.messages.keySet();
+    }
+
+    @Override
+    public Enumeration<String> getKeys() {
+      return Collections.enumeration(keySet());
+    }
+  }
+
+  public MessageCatalog(File dir) {
+    this.dir = dir;
+  }
+
+  /**
+   * @return the bundle for the locale; an empty bundle if there are no messages.
+   */
+  public ResourceBundle getBundle(Locale locale) {
+    List<Map<String, String>> chain = getChain(locale);
+    Locale defaultLocale = Locale.getDefault();
+    if (chain.isEmpty() && !locale.equals(defaultLocale)) {
+      chain = getChain(defaultLocale);
+    }
+    Map<String, String> base = read(BASE_NAME + EXTENSION);
+    if (base != null) {
+      chain.add(base);
+    }
+
+    ResourceBundle bundle = null;
+    for (int i = chain.size() - 1; i >= 0; i--) {
+      bundle = new CatalogBundle(chain.get(i), bundle);
+    }
+    if (bundle == null) {
+      logger.info("Missing locale bundle: " + locale);
+      bundle = new CatalogBundle(Collections.<String, String>emptyMap(), null);
+    }
+    return bundle;
+  }
+
+  /**
+   * @return the messages of the existing files for the locale, from the most specific one, without
+   *         the base bundle.
+   */
+  private List<Map<String, String>> getChain(Locale locale) {
+    List<String> suffixes = new ArrayList<>();
+    String language = locale.getLanguage(), country = locale.getCountry(),
+        variant = locale.getVariant();
+    if (!variant.isEmpty()) {
+      suffixes.add("_" + language + "_" + country + "_" + variant);
+    }
+    if (!country.isEmpty()) {
+      suffixes.add("_" + language + "_" + country);
+    }
+    if (!language.isEmpty()) {
+      suffixes.add("_" + language);
+    }
+
+    List<Map<String, String>> chain = new ArrayList<>();
+    for (String suffix : suffixes) {
+      Map<String, String> messages = read(BASE_NAME + suffix + EXTENSION);
+      if (messages != null) {
+        chain.add(messages);
+      }
+    }
+    return chain;
+  }
+
+  private Map<String, String> read(String name) {
+    File file = new File(this.dir, name);
+    long lastModified = file.lastModified();
+    if (lastModified == 0) {
+      // Does not exist
+      this.files.remove(name);
+      return null;
+    }
+
+    long length = file.length();
+    CatalogFile cached = this.files.get(name);
+    if (cached != null && cached.lastModified == lastModified && cached.length == length) {
+      return cached.messages;
+    }
+
+    logger.debug("Reading messages file " + file);
+    Map<String, String> messages = new HashMap<>();
+    try (InputStream stream = new FileInputStream(file)) {
+      // Same encoding rules as ResourceBundle: UTF-8, or ISO-8859-1 if not valid UTF-8
+      PropertyResourceBundle bundle = new PropertyResourceBundle(stream);
+      for (String key : bundle.keySet()) {
+        Object value = bundle.getObject(key);
+        if (value instanceof String) {
+          messages.put(key, (String) value);
+        }
+      }
+    } catch (IOException e) {
+      logger.error("Error reading messages file " + file, e);
+      return cached != null ? cached.messages : null;
+    }
+
+    Map<String, String> compact = Map.copyOf(messages);
+    this.files.put(name, new CatalogFile(lastModified, length, compact));
+    return compact;
+  }
+}
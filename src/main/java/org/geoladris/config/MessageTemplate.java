@@ -0,0 +1,84 @@
+package org.geoladris.config;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>
+ * Template with <code>${key}</code> references to messages, parsed once into literal and key
+ * segments so it can be rendered many times without scanning it again.
+ * </p>
+ *
+ * <p>
+ * Keys are made of letters, digits, underscores and dots. References to missing messages are kept
+ * as they are.
+ * </p>
+ */
+public class MessageTemplate {
+  // literals at even positions, keys at odd positions
+  private final String[] segments;
+  private final int literalLength;
+
+  private MessageTemplate(String[] segments) {
+    this.segments = segments;
+    int length = 0;
+    for (int i = 0; i < segments.length; i += 2) {
+      length += segments[i].length();
+    }
+    this.literalLength = length;
+  }
+
+  public static MessageTemplate compile(String template) {
+    List<String> segments = new ArrayList<>();
+    int literalStart = 0;
+    int start = template.indexOf("${");
+    while (start >= 0) {
+      int end = start + 2;
+      while (end < template.length() && isKeyChar(template.charAt(end))) {
+        end++;
+      }
+
+      if (end < template.length() && template.charAt(end) == '}') {
+        segments.add(template.substring(literalStart, start));
+        segments.add(template.substring(start + 2, end));
+        literalStart = end + 1;
+        start = template.indexOf("${", literalStart);
+      } else {
+        start = template.indexOf("${", start + 1);
+      }
+    }
+    segments.add(template.substring(literalStart));
+    return new MessageTemplate(segments.toArray(new String[segments.size()]));
+  }
+
+  private static boolean isKeyChar(char c) {
+    return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_'
+        || c == '.';
+  }
+
+  /**
+   * @param messages messages by key.
+   * @return the template with the message references replaced.
+   */
+  public String render(Map<String, String> messages) {
+    if (this.segments.length == 1) {
+      return this.segments[0];
+    }
+
+    StringBuilder ret = new StringBuilder(this.literalLength + 16 * this.segments.length);
+    for (int i = 0; i < this.segments.length; i++) {
+      if (i % 2 == 0) {
+        ret.append(this.segments[i]);
+      } else {
+        String message = messages.get(this.segments[i]);
+        if (message != null) {
+          ret.append(message);
+        } else {
+          ret.append("${").append(this.segments[i]).append('}');
+        }
+      }
+    }
+    return ret.toString();
+  }
+}
@@ -1,7 +1,9 @@
 package org.geoladris.config;
 
 import java.io.IOException;
+import java.util.Collections;
 import java.util.Map;
+import java.util.Set;
 
 import javax.servlet.http.HttpServletRequest;
 
@@ -10,7 +12,9 @@ import net.sf.json.JSONObject;
 public interface PluginConfigProvider {
   /**
    * @param config
-   * @param currentConfig
+   * @param currentConfig configuration of the plugins, by name, resulting from the previous
+   *        providers. Read-only: the map cannot be modified, and the {@link JSONObject} values are
+   *        shared with other requests, so they must not be modified either.
    * @param request Request that loads the application
    *
    * @return a map where the keys are the configured plugin names and the JSONObjects are the
@@ -23,7 +27,64 @@ public interface PluginConfigProvider {
   /**
    * @return <code>true</code> if the value returned by
    *         {@link #getPluginConfig(Config config, Map currentConfig, HttpServletRequest request)}
-   *         can be cached so that the method is not called in every request.
+   *         can be cached so that the method is not called in every request. The value must not
+   *         depend on the request: cached values may be refreshed in the background, once the
+   *         request is finished, and then the method is called with a <code>null</code> request.
+   *         Values cached by {@link #getCacheKey(HttpServletRequest)} are never refreshed in the
+   *         background.
    */
   boolean canBeCached();
+
+  /**
+   * Allows caching the value returned by
+   * {@link #getPluginConfig(Config config, Map currentConfig, HttpServletRequest request)} for
+   * providers that cannot be cached ({@link #canBeCached()} returns <code>false</code>), but whose
+   * value only depends on some of the request data, such as the role. The value is cached for each
+   * key.
+   *
+   * @param request Request that loads the application
+   * @return a key that identifies the value for the request, or <code>null</code> (the default) if
+   *         the value cannot be cached.
+   */
+  default String getCacheKey(HttpServletRequest request) {
+    return null;
+  }
+
+  /**
+   * Providers that ignore the <code>currentConfig</code> argument of
+   * {@link #getPluginConfig(Config config, Map currentConfig, HttpServletRequest request)} do not
+   * need to wait for the previous providers, so they can run concurrently with them. Their result
+   * is still merged in the order of the providers.
+   *
+   * @return <code>true</code> if the configuration does not depend on the configuration of the
+   *         previous providers; <code>false</code> (the default) otherwise.
+   */
+  default boolean ignoresCurrentConfig() {
+    return false;
+  }
+
+  /**
+   * Only used if {@link #ignoresCurrentConfig()} returns <code>true</code>; other providers always
+   * run after all the previous ones.
+   *
+   * @return the types of the previous providers this one must run after. Empty by default.
+   */
+  default Set<Class<? extends PluginConfigProvider>> getDependencies() {
+    return Collections.emptySet();
+  }
+
+  /**
+   * Called with the listener the provider can publish its changes to. Providers do not need to
+   * publish anything, since the cached configuration also expires.
+   */
+  default void setInvalidationListener(ConfigInvalidationListener listener) {}
+
+  /**
+   * @return <code>true</code> if the provider publishes all its changes to the listener set with
+   *         {@link #setInvalidationListener(ConfigInvalidationListener)}, so its configuration is
+   *         cached until it is invalidated; <code>false</code> (the default) if it must expire.
+   */
+  default boolean publishesInvalidations() {
+    return false;
+  }
 }
@@ -0,0 +1,233 @@
+package org.geoladris.config;
+
+import java.io.InputStream;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+import org.apache.log4j.Logger;
+
+import net.sf.json.JSONException;
+import net.sf.json.JSONObject;
+
+/**
+ * <p>
+ * Values of <code>portal.properties</code>, parsed once when the file is read: languages, default
+ * language and comma-separated values.
+ * </p>
+ *
+ * <p>
+ * Instances are shared between requests, so all the values are immutable and built in the
+ * constructor; the getters return them without copying.
+ * </p>
+ */
+public class PortalProperties {
+  private static final Logger logger = Logger.getLogger(PortalProperties.class);
+
+  private static final String PROPERTY_DEFAULT_LANG = "languages.default";
+  private static final String FALLBACK_LANG = "en";
+
+  private final Properties properties;
+  private final List<Map<String, String>> languages;
+  private final String defaultLang;
+  private final Map<String, List<String>> lists;
+
+  public PortalProperties(Properties properties) {
+    this.properties = new ReadOnlyProperties(properties);
+    Map<String, List<String>> lists = new HashMap<>();
+    for (String name : properties.stringPropertyNames()) {
+      lists.put(name, List.of(properties.getProperty(name).split(",")));
+    }
+    this.lists = Collections.unmodifiableMap(lists);
+
+    this.languages = parseLanguages(properties.getProperty(Config.PROPERTY_LANGUAGES));
+
+    String defaultLang = properties.getProperty(PROPERTY_DEFAULT_LANG);
+    if (defaultLang == null) {
+      defaultLang = this.languages != null && this.languages.size() > 0
+          ? this.languages.get(0).get("code") : FALLBACK_LANG;
+    }
+    this.defaultLang = defaultLang;
+  }
+
+  private static List<Map<String, String>> parseLanguages(String value) {
+    if (value == null) {
+      return null;
+    }
+
+    JSONObject json;
+    try {
+      json = JSONObject.fromObject(value);
+    } catch (JSONException e) {
+      logger.error("Invalid value for '" + Config.PROPERTY_LANGUAGES + "': " + value, e);
+      return null;
+    }
+
+    List<Map<String, String>> ret = new ArrayList<Map<String, String>>();
+    for (Object langCode : json.keySet()) {
+      Map<String, String> langObject = new LinkedHashMap<String, String>();
+      langObject.put("code", langCode.toString());
+      langObject.put("name", json.getString(langCode.toString()));
+      ret.add(Collections.unmodifiableMap(langObject));
+    }
+    return List.copyOf(ret);
+  }
+
+  /**
+   * @return the properties; they cannot be modified.
+   */
+  public Properties getProperties() {
+    return this.properties;
+  }
+
+  /**
+   * @return the languages, as in {@link Config#getLanguages()}, or null if there is no valid
+   *         language configuration. Neither the list nor the languages can be modified.
+   */
+  public List<Map<String, String>> getLanguages() {
+    return this.languages;
+  }
+
+  /**
+   * @return the <code>languages.default</code> property if defined; the first language otherwise,
+   *         or <code>en</code> if there are no languages.
+   */
+  public String getDefaultLang() {
+    return this.defaultLang;
+  }
+
+  /**
+   * @return the comma-separated values of the property, or null if the property does not exist.
+   *         The list cannot be modified.
+   */
+  public List<String> getList(String property) {
+    return this.lists.get(property);
+  }
+
+  /**
+   * Properties failing on every modification.
+   */
+  private static class ReadOnlyProperties extends Properties {
+    private static final long serialVersionUID = 1L;
+
+    private ReadOnlyProperties(Properties properties) {
+      for (String name : properties.stringPropertyNames()) {
+        super.put(name, properties.getProperty(name));
+      }
+    }
+
+    @Override
+    public synchronized Object setProperty(String key, String value) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public synchronized void load(Reader reader) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public synchronized void load(InputStream inStream) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public synchronized void loadFromXML(InputStream in) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public synchronized Object put(Object key, Object value) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public synchronized void putAll(Map<?, ?> t) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public synchronized Object putIfAbsent(Object key, Object value) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public synchronized Object remove(Object key) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public synchronized boolean remove(Object key, Object value) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public synchronized void clear() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public synchronized boolean replace(Object key, Object oldValue, Object newValue) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public synchronized Object replace(Object key, Object value) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public synchronized void replaceAll(
+        BiFunction<? super Object, ? super Object, ? extends Object> function) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public synchronized Object compute(Object key,
+        BiFunction<? super Object, ? super Object, ? extends Object> remappingFunction) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public synchronized Object computeIfAbsent(Object key,
+        Function<? super Object, ? extends Object> mappingFunction) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public synchronized Object computeIfPresent(Object key,
+        BiFunction<? super Object, ? super Object, ? extends Object> remappingFunction) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public synchronized Object merge(Object key, Object value,
+        BiFunction<? super Object, ? super Object, ? extends Object> remappingFunction) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Set<Object> keySet() {
+      return Collections.unmodifiableSet(super.keySet());
+    }
+
+    @Override
+    public Set<Map.Entry<Object, Object>> entrySet() {
+      return Collections.unmodifiableSet(super.entrySet());
+    }
+
+    @Override
+    public Collection<Object> values() {
+      return Collections.unmodifiableCollection(super.values());
+    }
+  }
+}
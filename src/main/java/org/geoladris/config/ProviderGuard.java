@@ -0,0 +1,253 @@
+package org.geoladris.config;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.log4j.Logger;
+
+/**
+ * <p>
+ * Protects the configuration from a failing or slow {@link PluginConfigProvider}: calls exceeding a
+ * time budget fail, and after a number of consecutive failures the provider is not called until a
+ * cool-down period passes (the circuit is open). Then, a single call is tried (the circuit is half
+ * open), closing the circuit again if it succeeds.
+ * </p>
+ *
+ * <p>
+ * The last successful result of each cache key is kept, so it can be used while the provider fails.
+ * </p>
+ *
+ * <p>
+ * Changes of the circuit state are logged; calls rejected while it is open are not.
+ * </p>
+ *
+ * @param <V> result type.
+ */
+public class ProviderGuard<V> {
+  private static final Logger logger = Logger.getLogger(ProviderGuard.class);
+
+  public enum State {
+    CLOSED, OPEN, HALF_OPEN
+  }
+
+  /**
+   * Thrown instead of calling the provider while the circuit is open.
+   */
+  public static class CircuitOpenException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    public CircuitOpenException(String message) {
+      super(message);
+    }
+  }
+
+  private final String name;
+  private final long budget;
+  private final int maxFailures;
+  private final long coolDown;
+  private final Executor executor;
+
+  private final AtomicReference<State> state = new AtomicReference<>(State.CLOSED);
+  private final AtomicInteger consecutiveFailures = new AtomicInteger();
+  private volatile long openUntil;
+  private final ExpiringCache<String, V> lastGood;
+  private final AtomicLong calls = new AtomicLong(), failures = new AtomicLong(),
+      timeouts = new AtomicLong(), rejections = new AtomicLong(), fallbacks = new AtomicLong(),
+      callTime = new AtomicLong(), maxCallTime = new AtomicLong();
+
+  /**
+   * @param name name of the guarded provider, for logging.
+   * @param budget maximum time of a call, in milliseconds. If negative or zero, calls have no time
+   *        limit and run in the caller thread.
+   * @param maxFailures consecutive failures that open the circuit. If negative or zero, the circuit
+   *        never opens.
+   * @param coolDown time, in milliseconds, the circuit is kept open.
+   * @param executor executor for the calls with a time budget. Its threads are interrupted when a
+   *        call exceeds the budget.
+   * @param maxKeys maximum number of last successful results kept.
+   */
+  public ProviderGuard(String name, long budget, int maxFailures, long coolDown,
+      Executor executor, int maxKeys) {
+    this.name = name;
+    this.budget = budget;
+    this.maxFailures = maxFailures;
+    this.coolDown = coolDown;
+    this.executor = executor;
+    this.lastGood = new ExpiringCache<>(0, maxKeys);
+  }
+
+  /**
+   * Calls the provider, unless the circuit is open.
+   *
+   * @param key cache key of the call, used to keep the result; null if the result cannot be reused.
+   * @return the result of the loader.
+   * @throws IOException if the loader fails or exceeds the budget, or the circuit is open.
+   */
+  public V call(String key, final ExpiringCache.Loader<V> loader) throws IOException {
+    if (!allowCall()) {
+      this.rejections.incrementAndGet();
+      throw new CircuitOpenException("Circuit open until " + this.openUntil);
+    }
+
+    this.calls.incrementAndGet();
+    long start = System.nanoTime();
+    V value;
+    try {
+      value = this.budget > 0 ? callWithBudget(loader) : loader.load();
+    } catch (IOException | RuntimeException | Error e) {
+      failed();
+      throw e;
+    } finally {
+      long time = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+      this.callTime.addAndGet(time);
+      long max = this.maxCallTime.get();
+      while (time > max && !this.maxCallTime.compareAndSet(max, time)) {
+        max = this.maxCallTime.get();
+      }
+    }
+
+    this.consecutiveFailures.set(0);
+    if (this.state.getAndSet(State.CLOSED) != State.CLOSED) {
+      logger.info("Circuit closed for " + this.name + ", calls succeed again");
+    }
+    if (key != null && value != null) {
+      this.lastGood.put(key, value);
+    }
+    return value;
+  }
+
+  private boolean allowCall() {
+    State current = this.state.get();
+    if (current == State.CLOSED) {
+      return true;
+    }
+    // Only one call is tried once the cool-down passes
+    return current == State.OPEN && now() >= this.openUntil
+        && this.state.compareAndSet(State.OPEN, State.HALF_OPEN);
+  }
+
+  private V callWithBudget(final ExpiringCache.Loader<V> loader) throws IOException {
+    FutureTask<V> task = new FutureTask<V>(new Callable<V>() {
+      @Override
+      public V call() throws IOException {
+        return loader.load();
+      }
+    });
+    try {
+      this.executor.execute(task);
+    } catch (RejectedExecutionException e) {
+      // All the threads are busy, probably with calls that exceeded the budget and still hang
+      throw new IOException("No thread available to call the provider");
+    }
+
+    try {
+      return task.get(this.budget, TimeUnit.MILLISECONDS);
+    } catch (TimeoutException e) {
+      task.cancel(true);
+      this.timeouts.incrementAndGet();
+      throw new IOException("Exceeded time budget of " + this.budget + "ms");
+    } catch (InterruptedException e) {
+      task.cancel(true);
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for the provider");
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new IOException(cause);
+    }
+  }
+
+  private void failed() {
+    this.failures.incrementAndGet();
+    int consecutive = this.consecutiveFailures.incrementAndGet();
+    if (this.state.get() == State.HALF_OPEN
+        || (this.maxFailures > 0 && consecutive >= this.maxFailures)) {
+      this.openUntil = now() + this.coolDown;
+      if (this.state.getAndSet(State.OPEN) != State.OPEN) {
+        logger.warn("Circuit opened for " + this.name + " after " + consecutive
+            + " consecutive failures. Not called for " + this.coolDown + "ms");
+      }
+    }
+  }
+
+  /**
+   * @return the last successful result for the key, or null if there is none.
+   */
+  public V getLastGood(String key) {
+    V value = key != null ? this.lastGood.get(key) : null;
+    if (value != null) {
+      this.fallbacks.incrementAndGet();
+    }
+    return value;
+  }
+
+  long now() {
+    return System.currentTimeMillis();
+  }
+
+  public State getState() {
+    return this.state.get();
+  }
+
+  /**
+   * @return number of calls to the provider, successful or not.
+   */
+  public long getCalls() {
+    return this.calls.get();
+  }
+
+  public long getFailures() {
+    return this.failures.get();
+  }
+
+  /**
+   * @return number of calls that exceeded the time budget.
+   */
+  public long getTimeouts() {
+    return this.timeouts.get();
+  }
+
+  /**
+   * @return number of calls not done because the circuit was open.
+   */
+  public long getRejections() {
+    return this.rejections.get();
+  }
+
+  /**
+   * @return number of times the last successful result has been used instead of a failed call.
+   */
+  public long getFallbacks() {
+    return this.fallbacks.get();
+  }
+
+  /**
+   * @return total time, in milliseconds, spent in calls.
+   */
+  public long getCallTime() {
+    return this.callTime.get();
+  }
+
+  /**
+   * @return time, in milliseconds, of the slowest call.
+   */
+  public long getMaxCallTime() {
+    return this.maxCallTime.get();
+  }
+}
@@ -0,0 +1,104 @@
+package org.geoladris.config;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+/**
+ * <p>
+ * Coalesces concurrent loads of the same key: only the first caller loads the value, while the rest
+ * of callers wait for it and get the same value (or exception).
+ * </p>
+ *
+ * <p>
+ * This way, many requests missing the same cache entry at once (after a deploy, an expiration or a
+ * plugin change) do not build the same configuration many times.
+ * </p>
+ *
+ * @param <K> key type.
+ * @param <V> value type.
+ */
+public class SingleFlight<K, V> {
+  private final ConcurrentHashMap<K, FutureTask<V>> calls = new ConcurrentHashMap<>();
+  private final AtomicLong loads = new AtomicLong(), coalesced = new AtomicLong();
+
+  /**
+   * Loads the value for the key, or waits for the load in progress for the same key.
+   *
+   * @throws IOException if the value cannot be loaded or the thread is interrupted while waiting.
+   */
+  public V load(K key, final ExpiringCache.Loader<V> loader) throws IOException {
+    FutureTask<V> task = new FutureTask<V>(new Callable<V>() {
+      @Override
+      public V call() throws IOException {
+        return loader.load();
+      }
+    });
+
+    FutureTask<V> call = this.calls.putIfAbsent(key, task);
+    if (call == null) {
+      call = task;
+      this.loads.incrementAndGet();
+      try {
+        task.run();
+      } finally {
+        this.calls.remove(key, task);
+      }
+    } else {
+      this.coalesced.incrementAndGet();
+    }
+
+    try {
+      return call.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for " + key);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new IOException(cause);
+    }
+  }
+
+  /**
+   * Stops coalescing with the loads in progress for the keys matching the filter, so later callers
+   * load the values again instead of waiting for outdated ones. The loads in progress are not
+   * interrupted.
+   */
+  public void forgetAll(Predicate<K> filter) {
+    this.calls.keySet().removeIf(filter);
+  }
+
+  /**
+   * @return number of loads actually run.
+   */
+  public long getLoads() {
+    return this.loads.get();
+  }
+
+  /**
+   * @return number of callers that waited for the load of another caller instead of loading the
+   *         value themselves.
+   */
+  public long getCoalesced() {
+    return this.coalesced.get();
+  }
+
+  /**
+   * @return number of loads in progress.
+   */
+  public int getInFlight() {
+    return this.calls.size();
+  }
+}
@@ -10,7 +10,7 @@ import javax.servlet.http.HttpServletRequest;
 import org.apache.log4j.Logger;
 import org.geoladris.Plugin;
 import org.geoladris.config.Config;
-import org.geoladris.config.PluginConfigProvider;
+import org.geoladris.config.FileConfigProvider;
 
 import net.sf.json.JSONObject;
 
@@ -18,10 +18,11 @@ import net.sf.json.JSONObject;
  * @deprecated Use {@link PublicConfProvider} instead.
  * @author victorzinho
  */
-public class PluginJSONConfigProvider implements PluginConfigProvider {
+public class PluginJSONConfigProvider implements FileConfigProvider {
   private static final Logger logger = Logger.getLogger(PluginJSONConfigProvider.class);
 
   private static final String PLUGIN_NAME = "core";
+  private static final String FILE = "plugin-conf.json";
 
   @Override
   public Map<String, JSONObject> getPluginConfig(Config config,
@@ -32,7 +33,7 @@ public class PluginJSONConfigProvider implements PluginConfigProvider {
     }
 
     logger.warn("Using deprecated plugin-conf.json; use public-conf instead");
-    File pluginConf = new File(config.getDir(), "plugin-conf.json");
+    File pluginConf = new File(config.getDir(), FILE);
 
     try {
       Plugin plugin = new Plugin(PLUGIN_NAME, pluginConf);
@@ -47,8 +48,29 @@ public class PluginJSONConfigProvider implements PluginConfigProvider {
 
   }
 
+  @Override
+  public boolean ignoresCurrentConfig() {
+    return true;
+  }
+
   @Override
   public boolean canBeCached() {
     return true;
   }
+
+  @Override
+  public File[] getFiles(Config config) {
+    return new File[] {new File(config.getDir(), PublicConfProvider.FILE),
+        new File(config.getDir(), FILE)};
+  }
+
+  @Override
+  public void setWatched(boolean watched) {
+    // Nothing is kept between calls; the result is cached by Config
+  }
+
+  @Override
+  public void filesChanged() {
+    // Nothing is kept between calls; the result is cached by Config
+  }
 }
@@ -2,12 +2,13 @@ package org.geoladris.config.providers;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.servlet.http.HttpServletRequest;
 
 import org.geoladris.config.Config;
+import org.geoladris.config.FileConfigProvider;
 import org.geoladris.config.PluginConfigProvider;
 
 import de.csgis.commons.JSONContentProvider;
@@ -21,11 +22,11 @@ import net.sf.json.JSONObject;
  * 
  * @author victorzinho
  */
-public class PublicConfProvider implements PluginConfigProvider {
+public class PublicConfProvider implements FileConfigProvider {
   public static final String FILE_BASE = "public-conf";
   public static final String FILE = FILE_BASE + ".json";
 
-  private Map<File, JSONContentProvider> contents = new HashMap<>();
+  private Map<File, JSONContentProvider> contents = new ConcurrentHashMap<>();
 
   @SuppressWarnings("unchecked")
   @Override
@@ -41,8 +42,28 @@ public class PublicConfProvider implements PluginConfigProvider {
     return file.exists() ? jsonContent.get().get(FILE_BASE) : null;
   }
 
+  @Override
+  public boolean ignoresCurrentConfig() {
+    return true;
+  }
+
   @Override
   public boolean canBeCached() {
     return true;
   }
+
+  @Override
+  public File[] getFiles(Config config) {
+    return new File[] {new File(config.getDir(), FILE)};
+  }
+
+  @Override
+  public void setWatched(boolean watched) {
+    // Nothing is kept between calls; the result is cached by Config
+  }
+
+  @Override
+  public void filesChanged() {
+    // Nothing is kept between calls; the result is cached by Config
+  }
 }
@@ -2,15 +2,16 @@ package org.geoladris.config.providers;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpSession;
 
 import org.geoladris.Geoladris;
 import org.geoladris.config.Config;
-import org.geoladris.config.PluginConfigProvider;
+import org.geoladris.config.FileConfigProvider;
 
 import de.csgis.commons.JSONContentProvider;
 import net.sf.json.JSONObject;
@@ -26,12 +27,22 @@ import net.sf.json.JSONObject;
  * The active role is taken from the {@link Geoladris#ATTR_ROLE} session attribute.
  * </p>
  * 
+ * <p>
+ * While the role directory is watched, role configurations are read only when they change.
+ * </p>
+ * 
  * @author victorzinho
  */
-public class RoleConfigProvider implements PluginConfigProvider {
+public class RoleConfigProvider implements FileConfigProvider {
   public static final String ROLE_DIR = "role_conf";
 
-  private Map<File, JSONContentProvider> contents = new HashMap<>();
+  private static final String ROLE_KEY_PREFIX = "role:";
+  private static final String NO_ROLE_KEY = "norole";
+
+  private Map<File, JSONContentProvider> contents = new ConcurrentHashMap<>();
+  private Map<File, Map<String, JSONObject>> roles = new ConcurrentHashMap<>();
+  private AtomicLong version = new AtomicLong();
+  private volatile boolean watched;
 
   @SuppressWarnings("unchecked")
   @Override
@@ -45,7 +56,21 @@ public class RoleConfigProvider implements PluginConfigProvider {
     }
 
     String role = getRole(request);
-    return role != null ? jsonContent.get().get(role) : null;
+    if (role == null) {
+      return null;
+    }
+
+    Map<String, JSONObject> roleConfs = this.watched ? this.roles.get(dir) : null;
+    if (roleConfs == null) {
+      long v = this.version.get();
+      roleConfs = jsonContent.get();
+      synchronized (this.roles) {
+        if (this.watched && this.version.get() == v) {
+          this.roles.put(dir, roleConfs);
+        }
+      }
+    }
+    return roleConfs.get(role);
   }
 
   private String getRole(HttpServletRequest request) {
@@ -61,8 +86,42 @@ public class RoleConfigProvider implements PluginConfigProvider {
     return attr.toString();
   }
 
+  @Override
+  public boolean ignoresCurrentConfig() {
+    return true;
+  }
+
   @Override
   public boolean canBeCached() {
     return false;
   }
+
+  /**
+   * The configuration only depends on the role, so it is cached for each role. Keys are never
+   * empty, since the empty key identifies the configuration shared by all requests.
+   */
+  @Override
+  public String getCacheKey(HttpServletRequest request) {
+    String role = getRole(request);
+    return role != null ? ROLE_KEY_PREFIX + role : NO_ROLE_KEY;
+  }
+
+  @Override
+  public File[] getFiles(Config config) {
+    return new File[] {new File(config.getDir(), ROLE_DIR)};
+  }
+
+  @Override
+  public void setWatched(boolean watched) {
+    this.watched = watched;
+    filesChanged();
+  }
+
+  @Override
+  public void filesChanged() {
+    synchronized (this.roles) {
+      this.version.incrementAndGet();
+      this.roles.clear();
+    }
+  }
 }
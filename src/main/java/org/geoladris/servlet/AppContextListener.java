@@ -9,6 +9,7 @@ import java.util.Set;
 import javax.servlet.ServletContext;
 import javax.servlet.ServletContextEvent;
 import javax.servlet.ServletContextListener;
+import javax.servlet.ServletRegistration;
 
 import org.apache.catalina.Globals;
 import org.apache.catalina.WebResourceRoot;
@@ -17,6 +18,7 @@ import org.apache.log4j.Logger;
 import org.geoladris.CSSPluginImportsUpdater;
 import org.geoladris.DirectoryWatcher;
 import org.geoladris.Environment;
+import org.geoladris.FileChangeWatcher;
 import org.geoladris.Geoladris;
 import org.geoladris.Plugin;
 import org.geoladris.PluginDirsAnalyzer;
@@ -32,6 +34,8 @@ import org.geoladris.config.providers.RoleConfigProvider;
 public class AppContextListener implements ServletContextListener {
   private static final Logger logger = Logger.getLogger(AppContextListener.class);
 
+  private FileChangeWatcher configWatcher;
+
   @Override
   public void contextInitialized(ServletContextEvent sce) {
     ServletContext servletContext = sce.getServletContext();
@@ -49,24 +53,26 @@ public class AppContextListener implements ServletContextListener {
     Set<Plugin> plugins = analyzer.getPlugins();
     boolean useCache = Environment.getInstance().getConfigCache();
 
-    String timeoutProp = Environment.getInstance().get(Environment.CACHE_TIMEOUT);
-    int cacheTimeout = -1;
-    if (timeoutProp != null) {
-      try {
-        cacheTimeout = Integer.parseInt(timeoutProp);
-      } catch (NumberFormatException e) {
-        logger.info("Invalid integer value for '" + Environment.CACHE_TIMEOUT
-            + "'. Cache timeout disabled");
-      }
-    }
+    int cacheTimeout = getSeconds(Environment.CACHE_TIMEOUT, "Cache timeout disabled");
+    int maxStale = getSeconds(Environment.CACHE_MAX_STALE, "Expired values won't be refreshed");
 
     List<PluginConfigProvider> providers = new ArrayList<>();
     providers.add(new PublicConfProvider());
     providers.add(new PluginJSONConfigProvider());
     providers.add(new RoleConfigProvider());
-    Config config = new ConfigImpl(configDir, providers, plugins, useCache, cacheTimeout);
+    ConfigImpl config =
+        new ConfigImpl(configDir, providers, plugins, useCache, cacheTimeout, maxStale);
+    Environment env = Environment.getInstance();
+    config.setProviderLimits(env.getProviderTimeout(servletContext),
+        env.getProviderMaxFailures(servletContext), env.getProviderCoolDown(servletContext));
+    if (useCache) {
+      watchConfig(config);
+    }
 
     servletContext.setAttribute(Geoladris.ATTR_CONFIG, config);
+    if (env.getRenderIndex(servletContext)) {
+      addIndexServlet(servletContext);
+    }
 
     File staticDir = new File(configDir, Config.DIR_STATIC);
     WebResourceRoot resourcesRoot =
@@ -80,6 +86,43 @@ public class AppContextListener implements ServletContextListener {
     addDirectoryWatcher(cssOverridesUpdater, staticDir, pluginsFromConfig);
   }
 
+  /**
+   * The index servlet takes the context root only when rendering is enabled, so the static
+   * <code>index.html</code> keeps being served as a welcome file otherwise.
+   */
+  private void addIndexServlet(ServletContext servletContext) {
+    if (getClass().getResource(IndexServlet.TEMPLATE) == null) {
+      logger.warn("Cannot find " + IndexServlet.TEMPLATE + ". Index page won't be rendered");
+      return;
+    }
+    ServletRegistration.Dynamic registration =
+        servletContext.addServlet("index-servlet", IndexServlet.class);
+    registration.setAsyncSupported(true);
+    registration.addMapping("", "/index.html");
+  }
+
+  private int getSeconds(String property, String invalidMessage) {
+    String value = Environment.getInstance().get(property);
+    if (value != null) {
+      try {
+        return Integer.parseInt(value);
+      } catch (NumberFormatException e) {
+        logger.info("Invalid integer value for '" + property + "'. " + invalidMessage);
+      }
+    }
+    return -1;
+  }
+
+  private void watchConfig(ConfigImpl config) {
+    try {
+      this.configWatcher = FileChangeWatcher.start();
+      config.watch(this.configWatcher);
+    } catch (IOException e) {
+      logger.warn("Cannot watch configuration files. Changes will be applied when the cache "
+          + "expires", e);
+    }
+  }
+
   private void addDirectoryWatcher(Runnable action, File... dirs) {
     try {
       DirectoryWatcher.watch(action, dirs);
@@ -145,5 +188,13 @@ public class AppContextListener implements ServletContextListener {
   }
 
   @Override
-  public void contextDestroyed(ServletContextEvent sce) {}
+  public void contextDestroyed(ServletContextEvent sce) {
+    if (this.configWatcher != null) {
+      this.configWatcher.close();
+    }
+    Object config = sce.getServletContext().getAttribute(Geoladris.ATTR_CONFIG);
+    if (config instanceof Config) {
+      ((Config) config).close();
+    }
+  }
 }
@@ -0,0 +1,345 @@
+package org.geoladris.servlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.TimeZone;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * <p>
+ * Keeps the status, headers, cookies and content written to a response in memory, so that they can
+ * be copied to the actual response later with {@link #replay(AsyncContext)}.
+ * </p>
+ *
+ * <p>
+ * Used to build the response on another thread without touching the actual response until it is
+ * complete, since it may have timed out in the meantime. Nothing is delegated to the actual
+ * response; the methods that need it (URL encoding) throw an {@link IllegalStateException}.
+ * </p>
+ */
+public class BufferedResponse extends HttpServletResponseWrapper {
+  private static final String DATE_FORMAT = "EEE, dd MMM yyyy HH:mm:ss zzz";
+
+  private final List<String[]> headers = new ArrayList<>();
+  private final List<Cookie> cookies = new ArrayList<>();
+  private final ByteArrayOutputStream content = new ByteArrayOutputStream();
+  private int status = SC_OK;
+  private boolean error;
+  private String errorMessage, redirect;
+  private String contentType, characterEncoding;
+  private Locale locale;
+  private PrintWriter writer;
+  private ServletOutputStream outputStream;
+
+  public BufferedResponse() {
+    super(Unavailable.of(HttpServletResponse.class));
+  }
+
+  @Override
+  public void setStatus(int status) {
+    this.status = status;
+  }
+
+  @Override
+  @Deprecated
+  public void setStatus(int status, String msg) {
+    setStatus(status);
+  }
+
+  @Override
+  public int getStatus() {
+    return this.status;
+  }
+
+  @Override
+  public void sendError(int status) throws IOException {
+    sendError(status, null);
+  }
+
+  @Override
+  public void sendError(int status, String msg) throws IOException {
+    this.status = status;
+    this.errorMessage = msg;
+    this.error = true;
+    resetBuffer();
+  }
+
+  @Override
+  public void sendRedirect(String location) throws IOException {
+    this.status = SC_FOUND;
+    this.redirect = location;
+    resetBuffer();
+  }
+
+  @Override
+  public void setHeader(String name, String value) {
+    Iterator<String[]> iterator = this.headers.iterator();
+    while (iterator.hasNext()) {
+      if (iterator.next()[0].equalsIgnoreCase(name)) {
+        iterator.remove();
+      }
+    }
+    addHeader(name, value);
+  }
+
+  @Override
+  public void addHeader(String name, String value) {
+    this.headers.add(new String[] {name, value});
+  }
+
+  @Override
+  public void setIntHeader(String name, int value) {
+    setHeader(name, Integer.toString(value));
+  }
+
+  @Override
+  public void addIntHeader(String name, int value) {
+    addHeader(name, Integer.toString(value));
+  }
+
+  @Override
+  public void setDateHeader(String name, long date) {
+    setHeader(name, formatDate(date));
+  }
+
+  @Override
+  public void addDateHeader(String name, long date) {
+    addHeader(name, formatDate(date));
+  }
+
+  private static String formatDate(long date) {
+    SimpleDateFormat format = new SimpleDateFormat(DATE_FORMAT, Locale.US);
+    format.setTimeZone(TimeZone.getTimeZone("GMT"));
+    return format.format(new Date(date));
+  }
+
+  @Override
+  public boolean containsHeader(String name) {
+    return getHeader(name) != null;
+  }
+
+  @Override
+  public String getHeader(String name) {
+    for (String[] header : this.headers) {
+      if (header[0].equalsIgnoreCase(name)) {
+        return header[1];
+      }
+    }
+    return null;
+  }
+
+  @Override
+  public Collection<String> getHeaders(String name) {
+    List<String> values = new ArrayList<>();
+    for (String[] header : this.headers) {
+      if (header[0].equalsIgnoreCase(name)) {
+        values.add(header[1]);
+      }
+    }
+    return values;
+  }
+
+  @Override
+  public Collection<String> getHeaderNames() {
+    Set<String> names = new LinkedHashSet<>();
+    for (String[] header : this.headers) {
+      names.add(header[0]);
+    }
+    return names;
+  }
+
+  @Override
+  public void addCookie(Cookie cookie) {
+    this.cookies.add(cookie);
+  }
+
+  @Override
+  public void setContentType(String type) {
+    this.contentType = type;
+  }
+
+  @Override
+  public String getContentType() {
+    return this.contentType;
+  }
+
+  @Override
+  public void setCharacterEncoding(String charset) {
+    this.characterEncoding = charset;
+  }
+
+  @Override
+  public String getCharacterEncoding() {
+    return this.characterEncoding;
+  }
+
+  @Override
+  public void setLocale(Locale locale) {
+    this.locale = locale;
+  }
+
+  @Override
+  public Locale getLocale() {
+    return this.locale != null ? this.locale : Locale.getDefault();
+  }
+
+  @Override
+  public void setContentLength(int length) {
+    // Set on replay, from the actual content
+  }
+
+  @Override
+  public void setContentLengthLong(long length) {
+    // Set on replay, from the actual content
+  }
+
+  @Override
+  public void setBufferSize(int size) {
+    // Everything is buffered
+  }
+
+  @Override
+  public int getBufferSize() {
+    return Integer.MAX_VALUE;
+  }
+
+  @Override
+  public void flushBuffer() {
+    // Flushed on replay
+  }
+
+  @Override
+  public boolean isCommitted() {
+    return false;
+  }
+
+  @Override
+  public void resetBuffer() {
+    if (this.writer != null) {
+      this.writer.flush();
+    }
+    this.content.reset();
+  }
+
+  @Override
+  public void reset() {
+    resetBuffer();
+    this.headers.clear();
+    this.cookies.clear();
+    this.status = SC_OK;
+    this.contentType = null;
+    this.characterEncoding = null;
+    this.locale = null;
+  }
+
+  @Override
+  public ServletOutputStream getOutputStream() {
+    if (this.outputStream == null) {
+      this.outputStream = new ServletOutputStream() {
+        @Override
+        public void write(int b) {
+          content.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+          content.write(b, off, len);
+        }
+
+        @Override
+        public boolean isReady() {
+          return true;
+        }
+
+        @Override
+        public void setWriteListener(WriteListener listener) {
+          // Always ready, writing never blocks
+          try {
+            listener.onWritePossible();
+          } catch (IOException e) {
+            listener.onError(e);
+          }
+        }
+      };
+    }
+    return this.outputStream;
+  }
+
+  @Override
+  public PrintWriter getWriter() {
+    if (this.writer == null) {
+      // ConfigServlet always writes utf8
+      this.writer = new PrintWriter(new OutputStreamWriter(this.content, StandardCharsets.UTF_8));
+    }
+    return this.writer;
+  }
+
+  /**
+   * Copies the buffered status, headers, cookies and content to the response of the given context
+   * and completes it once the content has been written.
+   */
+  public void replay(AsyncContext async) throws IOException {
+    HttpServletResponse response = (HttpServletResponse) async.getResponse();
+    if (this.writer != null) {
+      this.writer.flush();
+    }
+
+    for (String[] header : this.headers) {
+      response.addHeader(header[0], header[1]);
+    }
+    for (Cookie cookie : this.cookies) {
+      response.addCookie(cookie);
+    }
+    if (this.locale != null) {
+      response.setLocale(this.locale);
+    }
+
+    if (this.error) {
+      if (this.errorMessage != null) {
+        response.sendError(this.status, this.errorMessage);
+      } else {
+        response.sendError(this.status);
+      }
+      async.complete();
+      return;
+    } else if (this.redirect != null) {
+      response.sendRedirect(this.redirect);
+      async.complete();
+      return;
+    }
+
+    response.setStatus(this.status);
+    if (this.contentType != null) {
+      response.setContentType(this.contentType);
+    }
+    if (this.characterEncoding != null) {
+      response.setCharacterEncoding(this.characterEncoding);
+    }
+
+    byte[] bytes = this.content.toByteArray();
+    if (bytes.length > 0) {
+      response.setContentLength(bytes.length);
+      PayloadWriteListener.write(async, bytes);
+    } else {
+      async.complete();
+    }
+  }
+}
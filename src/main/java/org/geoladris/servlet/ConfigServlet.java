@@ -1,113 +1,606 @@
 package org.geoladris.servlet;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.util.ArrayList;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
 import java.util.Collections;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Locale;
-import java.util.MissingResourceException;
-import java.util.ResourceBundle;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import javax.servlet.ServletContext;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.apache.log4j.Logger;
+import org.geoladris.Environment;
 import org.geoladris.Geoladris;
-import org.geoladris.Plugin;
 import org.geoladris.config.Config;
+import org.geoladris.config.ExpiringCache;
+import org.geoladris.config.SingleFlight;
 
-import net.sf.json.JSONObject;
-import net.sf.json.JSONSerializer;
-
+/**
+ * <p>
+ * Serves the RequireJS configuration:
+ * </p>
+ * <ul>
+ * <li><code>config.js</code>: the whole configuration.</li>
+ * <li><code>config</code>{@value #PATH_OVERLAY}: the configuration that changes between requests
+ * (locale, role, URL parameters...). It loads the bootstrap script below.</li>
+ * <li><code>config/bootstrap-&lt;hash&gt;.js</code>: the configuration shared by all requests. It
+ * changes only when the plugins or the cached configuration change, so browsers can cache it
+ * forever.</li>
+ * <li><code>config/i18n-&lt;hash&gt;.js</code>: the messages for a locale, loaded by any of the
+ * scripts above. As the bootstrap script, it can be cached forever.</li>
+ * <li><code>config</code>{@value #PATH_LOADER}: a script that loads <code>config.js</code> as
+ * deltas (see below) and keeps the result in the local storage of the browser. It can replace
+ * <code>config.js</code> in a page.</li>
+ * </ul>
+ *
+ * <p>
+ * Only a few versions of the fingerprinted scripts are kept. Other versions are built again if
+ * they are still the current ones; otherwise, clients are redirected to the current version.
+ * </p>
+ *
+ * <p>
+ * Clients that already have a version of <code>config.js</code> can ask only for the changes, as
+ * in RFC 3229: they send its hash in <code>If-None-Match</code> and
+ * <code>A-IM: {@value #DELTA_IM}</code>. If the version is still among the last
+ * {@value #MAX_HISTORY} ones, the response is a <code>226 IM Used</code> with the document
+ * described in {@link ConfigWriter#writeDelta}.
+ * Otherwise, the response is the same document with the whole configuration and no base.
+ * </p>
+ *
+ * <p>
+ * <code>config.js</code> and the overlay also include the {@link Preloads} for the plugins.
+ * </p>
+ *
+ * <p>
+ * If {@link Environment#CONFIG_ASYNC} is enabled, responses are built out of the container
+ * threads: on virtual threads if the JVM supports them or on a bounded pool otherwise. Requests
+ * that take longer than {@link Environment#CONFIG_TIMEOUT} get a 503 error.
+ * </p>
+ *
+ * <p>
+ * Payloads are written without blocking (see {@link PayloadWriteListener}) when the request is
+ * asynchronous or they are larger than a chunk.
+ * </p>
+ */
 public class ConfigServlet extends HttpServlet {
   private static final long serialVersionUID = 1L;
+  private static final Logger logger = Logger.getLogger(ConfigServlet.class);
+
+  public static final String PATH_OVERLAY = "/overlay.js";
+  public static final String BOOTSTRAP_PREFIX = "/bootstrap-";
+  public static final String MESSAGES_PREFIX = "/i18n-";
+  public static final String PATH_LOADER = "/loader.js";
+  public static final String DELTA_IM = "config-delta";
+
+  private static final int SC_IM_USED = 226;
+
+  private static final String IMMUTABLE = "public, max-age=31536000, immutable";
+
+  private static final int MAX_SNAPSHOTS = 64;
+  private static final int MAX_BOOTSTRAPS = 8;
+  private static final int MAX_MESSAGES = 32;
+  private static final int MAX_HISTORY = 16;
+  private static final int MAX_DELTAS = 64;
+  private static final int MAX_QUEUED = 256;
+
+  private final Map<String, ConfigSnapshot> snapshots = lru(MAX_SNAPSHOTS);
+  private final Map<String, Bootstrap> bootstraps = lru(MAX_BOOTSTRAPS);
+  // by locale and by hash
+  private final Map<String, ConfigSnapshot> messages = lru(MAX_MESSAGES);
+  private final Map<String, ConfigSnapshot> messagesByHash = lru(MAX_MESSAGES);
+  // config.js versions by hash, to compute deltas
+  private final Map<String, Version> history = lru(MAX_HISTORY);
+  private final Map<String, ConfigSnapshot> deltas = lru(MAX_DELTAS);
+  private ConfigSnapshot loader;
+  private final SingleFlight<String, ConfigSnapshot> builds = new SingleFlight<>();
+  private volatile Bootstrap currentBootstrap;
+  private Preloads preloads;
+  private transient ExecutorService executor;
+  private long timeout;
+
+  private static class Version {
+    private final RequireConfig config;
+    private final String messagesUrl;
+
+    private Version(RequireConfig config, String messagesUrl) {
+      this.config = config;
+      this.messagesUrl = messagesUrl;
+    }
+  }
+
+  private static class Bootstrap {
+    private final String key;
+    private final RequireConfig config;
+    private final ConfigSnapshot snapshot;
+
+    private Bootstrap(String key, RequireConfig config, ConfigSnapshot snapshot) {
+      this.key = key;
+      this.config = config;
+      this.snapshot = snapshot;
+    }
+  }
+
+  static <T> Map<String, T> lru(final int maxSize) {
+    return Collections.synchronizedMap(new LinkedHashMap<String, T>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, T> eldest) {
+        return size() > maxSize;
+      }
+    });
+  }
+
+  @Override
+  public void init() throws ServletException {
+    Environment env = Environment.getInstance();
+    this.preloads = new Preloads(env.getPreloadBudget(getServletContext()));
+    try {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      ConfigWriter.writeLoader(writer(out));
+      this.loader = new ConfigSnapshot(out.toByteArray());
+    } catch (IOException e) {
+      throw new ServletException(e);
+    }
+    if (env.getConfigAsync(getServletContext())) {
+      this.executor = createExecutor();
+      this.timeout = env.getConfigTimeout(getServletContext());
+    }
+  }
+
+  @Override
+  public void destroy() {
+    if (this.executor != null) {
+      this.executor.shutdownNow();
+    }
+  }
+
+  /**
+   * @return an executor with a virtual thread per task if the JVM supports them (Java 21+), or a
+   *         bounded thread pool otherwise.
+   */
+  private static ExecutorService createExecutor() {
+    try {
+      Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+      return (ExecutorService) method.invoke(null);
+    } catch (ReflectiveOperationException e) {
+      int threads = Math.max(4, 2 * Runtime.getRuntime().availableProcessors());
+      final AtomicInteger count = new AtomicInteger();
+      return new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+          new ArrayBlockingQueue<Runnable>(MAX_QUEUED), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+              Thread thread = new Thread(r, "geoladris-config-" + count.incrementAndGet());
+              thread.setDaemon(true);
+              return thread;
+            }
+          });
+    }
+  }
 
   @Override
   protected void doGet(HttpServletRequest req, HttpServletResponse resp)
       throws ServletException, IOException {
+    if (this.executor != null && req.isAsyncSupported()) {
+      serveAsync(req, resp);
+    } else {
+      serve(req, resp);
+    }
+  }
+
+  private void serveAsync(HttpServletRequest req, final HttpServletResponse resp)
+      throws IOException {
+    final DetachedRequest detached = new DetachedRequest(req);
+    final AsyncContext async = req.startAsync(req, resp);
+    // Never disabled; the response may be written without blocking afterwards
+    async.setTimeout(this.timeout > 0 ? this.timeout : PayloadWriteListener.WRITE_TIMEOUT);
+
+    // Either the worker or the timeout writes the response, never both
+    final AtomicBoolean done = new AtomicBoolean();
+    async.addListener(new AsyncListener() {
+      @Override
+      public void onTimeout(AsyncEvent event) throws IOException {
+        detached.release();
+        if (done.compareAndSet(false, true)) {
+          ErrorFilter.sendError(resp, new StatusServletException(
+              HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Timeout building the configuration"));
+          async.complete();
+        }
+      }
+
+      @Override
+      public void onError(AsyncEvent event) {
+        detached.release();
+        done.set(true);
+      }
+
+      @Override
+      public void onStartAsync(AsyncEvent event) {}
+
+      @Override
+      public void onComplete(AsyncEvent event) {
+        detached.release();
+      }
+    });
+
+    try {
+      this.executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          BufferedResponse buffer = new BufferedResponse();
+          Throwable error = null;
+          try {
+            serve(detached, buffer);
+          } catch (Throwable e) {
+            error = e;
+          } finally {
+            detached.release();
+          }
+
+          if (!done.compareAndSet(false, true)) {
+            logger.info("Configuration built after the request timed out");
+            return;
+          }
+          try {
+            if (error != null) {
+              ErrorFilter.sendError(resp, error);
+              async.complete();
+            } else {
+              buffer.replay(async);
+            }
+          } catch (IOException e) {
+            logger.info("Cannot send the configuration: " + e.getMessage());
+            async.complete();
+          }
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      if (done.compareAndSet(false, true)) {
+        ErrorFilter.sendError(resp, new StatusServletException(
+            HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Too many configuration requests"));
+        async.complete();
+      }
+    }
+  }
+
+  private void serve(HttpServletRequest req, HttpServletResponse resp)
+      throws ServletException, IOException {
     Config config = (Config) getServletContext().getAttribute(Geoladris.ATTR_CONFIG);
     Locale locale = (Locale) req.getSession().getAttribute(Geoladris.ATTR_LOCALE);
 
-    ResourceBundle bundle = config.getMessages(locale);
+    String pathInfo = req.getPathInfo();
+    if (pathInfo == null) {
+      this.preloads.addHeader(config, req, resp);
+      serveConfig(config, locale, req, resp);
+    } else if (pathInfo.equals(PATH_OVERLAY)) {
+      this.preloads.addHeader(config, req, resp);
+      serveOverlay(config, locale, req, resp);
+    } else if (pathInfo.equals(PATH_LOADER)) {
+      resp.setContentType("application/javascript");
+      resp.setCharacterEncoding("utf8");
+      send(this.loader, "no-cache", req, resp);
+    } else if (pathInfo.startsWith(BOOTSTRAP_PREFIX) && pathInfo.endsWith(".js")) {
+      String hash = pathInfo.substring(BOOTSTRAP_PREFIX.length(), pathInfo.length() - 3);
+      Bootstrap bootstrap = this.bootstraps.get(hash);
+      if (bootstrap == null) {
+        // Dropped, or built before a restart or by another node; it may still be the current one
+        bootstrap = getBootstrap(config, req);
+      }
+      serveImmutable(bootstrap.snapshot, hash, BOOTSTRAP_PREFIX, req, resp);
+    } else if (pathInfo.startsWith(MESSAGES_PREFIX) && pathInfo.endsWith(".js")) {
+      String hash = pathInfo.substring(MESSAGES_PREFIX.length(), pathInfo.length() - 3);
+      ConfigSnapshot snapshot = this.messagesByHash.get(hash);
+      if (snapshot == null) {
+        snapshot = getMessages(config, locale);
+      }
+      serveImmutable(snapshot, hash, MESSAGES_PREFIX, req, resp);
+    } else {
+      resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+    }
+  }
 
-    String title;
-    try {
-      title = bundle.getString("title");
-    } catch (MissingResourceException e) {
-      title = "Untitled";
-    }
-
-    JSONObject moduleConfig = new JSONObject();
-    // Fixed elements
-    Plugin[] enabledPluginDescriptors = config.getPluginConfig(locale, req);
-    moduleConfig.element("customization", buildCustomizationObject(getServletContext(), config,
-        locale, title, enabledPluginDescriptors));
-    moduleConfig.element("i18n", buildI18NObject(bundle));
-    moduleConfig.element("url-parameters", JSONSerializer.toJSON(req.getParameterMap()));
-
-    JSONObject paths = new JSONObject();
-    JSONObject shim = new JSONObject();
-
-    for (Plugin pluginDescriptor : enabledPluginDescriptors) {
-      JSONObject configuration = pluginDescriptor.getConfiguration();
-      if (configuration != null) {
-        moduleConfig.putAll(configuration);
+  /**
+   * Sends the snapshot if it has the requested hash. Otherwise, the requested version is no
+   * longer available, and the client is redirected to the current one.
+   */
+  private void serveImmutable(ConfigSnapshot snapshot, String hash, String prefix,
+      HttpServletRequest req, HttpServletResponse resp) throws IOException {
+    if (!snapshot.getHash().equals(hash)) {
+      // Relative to the requested script; the redirect changes with the configuration
+      resp.setHeader("Cache-Control", "no-cache");
+      resp.sendRedirect(prefix.substring(1) + snapshot.getHash() + ".js");
+    } else {
+      resp.setContentType("application/javascript");
+      resp.setCharacterEncoding("utf8");
+      send(snapshot, IMMUTABLE, req, resp);
+    }
+  }
+
+  private void serveConfig(final Config config, final Locale locale,
+      final HttpServletRequest req, HttpServletResponse resp) throws IOException {
+    resp.setContentType("application/javascript");
+    resp.setCharacterEncoding("utf8");
+
+    String messagesHash = getMessages(config, locale).getHash();
+    String messagesUrl = "config" + MESSAGES_PREFIX + messagesHash + ".js";
+
+    boolean delta = acceptsDelta(req.getHeader("A-IM"));
+    String key = config.getCacheKey(locale, req);
+    if (key == null) {
+      resp.setHeader("Cache-Control", "no-cache");
+      resp.setHeader("Vary", "A-IM");
+      if (delta) {
+        // Not kept, so it cannot be the base of later deltas
+        resp.setContentType("application/json");
+        ConfigWriter.writeDelta(resp.getWriter(), null, new RequireConfig(), null,
+            new ConfigWriter(config).build(locale, req), messagesUrl);
+      } else {
+        new ConfigWriter(config).write(resp.getWriter(), locale, req, messagesUrl);
       }
+      return;
+    }
 
-      JSONObject requirejs = pluginDescriptor.getRequireJS();
-      if (requirejs != null && !requirejs.isNullObject()) {
-        if (requirejs.has("paths")) {
-          paths.putAll(requirejs.getJSONObject("paths"));
-        }
-        if (requirejs.has("shim")) {
-          shim.putAll(requirejs.getJSONObject("shim"));
+    // url-parameters are part of the response
+    final String snapshotKey = key + "?" + req.getQueryString() + "#" + messagesHash;
+    ConfigSnapshot snapshot = this.snapshots.get(snapshotKey);
+    if (snapshot == null) {
+      snapshot = build(snapshotKey, new ExpiringCache.Loader<ConfigSnapshot>() {
+        @Override
+        public ConfigSnapshot load() throws IOException {
+          ByteArrayOutputStream out = new ByteArrayOutputStream();
+          RequireConfig requireConfig =
+              new ConfigWriter(config).write(writer(out), locale, req, messagesUrl);
+          ConfigSnapshot built = new ConfigSnapshot(out.toByteArray());
+          history.put(built.getHash(), new Version(requireConfig, messagesUrl));
+          return built;
         }
+      });
+    }
+
+    if (delta) {
+      Version current = this.history.get(snapshot.getHash());
+      if (current == null) {
+        // Dropped from the history, but the snapshot key ensures the content is the same
+        current = new Version(new ConfigWriter(config).build(locale, req), messagesUrl);
+        this.history.put(snapshot.getHash(), current);
       }
+      sendDelta(snapshot, current, req, resp);
+    } else {
+      // Delta responses are a different representation
+      send(snapshot, "private, no-cache", "Accept-Encoding, A-IM", req, resp);
+    }
+  }
+
+  /**
+   * Sends the changes between the version of the client and <code>snapshot</code>: a 304 if there
+   * are none, a 226 if the version of the client is known, or the whole configuration otherwise.
+   */
+  private void sendDelta(ConfigSnapshot snapshot, Version current, HttpServletRequest req,
+      HttpServletResponse resp) throws IOException {
+    resp.setContentType("application/json");
+    resp.setHeader("Cache-Control", "private, no-cache");
+    resp.setHeader("Vary", "Accept-Encoding, A-IM");
+
+    String hash = snapshot.getHash();
+    String baseHash = getBaseHash(req.getHeader("If-None-Match"));
+    if (hash.equals(baseHash)) {
+      resp.setHeader("ETag", snapshot.getETag(null));
+      resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+      return;
+    }
+
+    Version base = baseHash != null ? this.history.get(baseHash) : null;
+    if (base == null) {
+      baseHash = null;
+    }
+    String key = baseHash + ":" + hash;
+    ConfigSnapshot delta = this.deltas.get(key);
+    if (delta == null) {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      ConfigWriter.writeDelta(writer(out), baseHash,
+          base != null ? base.config : new RequireConfig(), hash, current.config,
+          current.messagesUrl);
+      delta = new ConfigSnapshot(out.toByteArray());
+      this.deltas.put(key, delta);
+    }
+
+    if (base != null) {
+      resp.setStatus(SC_IM_USED);
+      resp.setHeader("IM", DELTA_IM);
+      resp.setHeader("Delta-Base", "\"" + baseHash + "\"");
+      // The entity tag is the one of the current instance, not the delta
+      resp.setHeader("ETag", snapshot.getETag(null));
     }
+    writePayload(delta, ConfigSnapshot.selectEncoding(req.getHeader("Accept-Encoding")), req,
+        resp);
+  }
 
-    JSONObject ret = new JSONObject();
-    ret.element("config", moduleConfig);
-    ret.element("paths", paths);
-    ret.element("shim", shim);
-    String json = ret.toString();
+  /**
+   * @return the hash of the only entity tag in the <code>If-None-Match</code> header, without the
+   *         encoding suffix; null if there is none or there are several.
+   */
+  private static String getBaseHash(String ifNoneMatch) {
+    if (ifNoneMatch == null || ifNoneMatch.contains(",")) {
+      return null;
+    }
+    String ret = ifNoneMatch.trim();
+    if (ret.startsWith("W/")) {
+      ret = ret.substring(2);
+    }
+    ret = ret.replace("\"", "");
+    int suffix = ret.indexOf('-');
+    return suffix >= 0 ? ret.substring(0, suffix) : ret;
+  }
 
+  private static boolean acceptsDelta(String aIM) {
+    if (aIM == null) {
+      return false;
+    }
+    for (String token : aIM.split(",")) {
+      if (token.split(";")[0].trim().equalsIgnoreCase(DELTA_IM)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private void serveOverlay(final Config config, final Locale locale,
+      final HttpServletRequest req, HttpServletResponse resp) throws IOException {
     resp.setContentType("application/javascript");
     resp.setCharacterEncoding("utf8");
-    PrintWriter writer = resp.getWriter();
-    writer.write("var require = " + json);
+
+    Bootstrap bootstrap = getBootstrap(config, req);
+    String hash = bootstrap.snapshot.getHash();
+    String bootstrapUrl = "config" + BOOTSTRAP_PREFIX + hash + ".js";
+    String messagesHash = getMessages(config, locale).getHash();
+    String messagesUrl = "config" + MESSAGES_PREFIX + messagesHash + ".js";
+
+    String key = config.getCacheKey(locale, req);
+    if (key == null) {
+      resp.setHeader("Cache-Control", "no-cache");
+      new ConfigWriter(config).writeOverlay(resp.getWriter(), locale, req, bootstrap.config,
+          bootstrapUrl, messagesUrl);
+      return;
+    }
+
+    String snapshotKey =
+        PATH_OVERLAY + key + "?" + req.getQueryString() + "#" + hash + "#" + messagesHash;
+    ConfigSnapshot snapshot = this.snapshots.get(snapshotKey);
+    if (snapshot == null) {
+      snapshot = build(snapshotKey, new ExpiringCache.Loader<ConfigSnapshot>() {
+        @Override
+        public ConfigSnapshot load() throws IOException {
+          ByteArrayOutputStream out = new ByteArrayOutputStream();
+          new ConfigWriter(config).writeOverlay(writer(out), locale, req, bootstrap.config,
+              bootstrapUrl, messagesUrl);
+          return new ConfigSnapshot(out.toByteArray());
+        }
+      });
+    }
+
+    send(snapshot, "private, no-cache", req, resp);
   }
 
-  private HashMap<String, String> buildI18NObject(ResourceBundle bundle) {
-    HashMap<String, String> messages = new HashMap<String, String>();
-    for (String key : bundle.keySet()) {
-      messages.put(key, bundle.getString(key));
+  /**
+   * Builds the snapshot for the key, unless another request is already building it.
+   */
+  private ConfigSnapshot build(final String key, final ExpiringCache.Loader<ConfigSnapshot> loader)
+      throws IOException {
+    return this.builds.load(key, new ExpiringCache.Loader<ConfigSnapshot>() {
+      @Override
+      public ConfigSnapshot load() throws IOException {
+        // Built by another request since the lookup
+        ConfigSnapshot snapshot = snapshots.get(key);
+        if (snapshot == null) {
+          snapshot = loader.load();
+          snapshots.put(key, snapshot);
+        }
+        return snapshot;
+      }
+    });
+  }
+
+  private Bootstrap getBootstrap(Config config, HttpServletRequest req) throws IOException {
+    String key = config.getSharedCacheKey();
+    Bootstrap bootstrap = this.currentBootstrap;
+    if (key != null && bootstrap != null && key.equals(bootstrap.key)) {
+      return bootstrap;
     }
 
-    return messages;
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    RequireConfig requireConfig = new ConfigWriter(config).writeBootstrap(writer(out), req);
+    ConfigSnapshot snapshot = new ConfigSnapshot(out.toByteArray());
+
+    // Reuse the previous bootstrap if the content did not change
+    Bootstrap previous = this.bootstraps.get(snapshot.getHash());
+    if (previous != null) {
+      bootstrap = new Bootstrap(key, previous.config, previous.snapshot);
+    } else {
+      bootstrap = new Bootstrap(key, requireConfig, snapshot);
+    }
+    this.bootstraps.put(snapshot.getHash(), bootstrap);
+    this.currentBootstrap = bootstrap;
+    return bootstrap;
   }
 
-  private JSONObject buildCustomizationObject(ServletContext servletContext, Config config,
-      Locale locale, String title, Plugin[] plugins) {
-    JSONObject obj = new JSONObject();
-    obj.element("title", title);
-    obj.element(Config.PROPERTY_LANGUAGES, config.getLanguages());
-    obj.element("languageCode", locale.getLanguage());
-    obj.element(Config.PROPERTY_MAP_CENTER, config.getPropertyAsArray(Config.PROPERTY_MAP_CENTER));
-    obj.element("map.initialZoomLevel", config.getProperties().get("map.initialZoomLevel"));
+  private ConfigSnapshot getMessages(Config config, Locale locale) throws IOException {
+    String key = config.getSharedCacheKey();
+    ConfigSnapshot snapshot = key != null ? this.messages.get(key + ":" + locale) : null;
+    if (snapshot != null) {
+      return snapshot;
+    }
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    new ConfigWriter(config).writeMessages(writer(out), config.getMessages(locale));
+    snapshot = new ConfigSnapshot(out.toByteArray());
 
-    ArrayList<String> modules = new ArrayList<String>();
-    String[] extraModules = config.getPropertyAsArray(Config.PROPERTY_CLIENT_MODULES);
-    if (extraModules != null) {
-      Collections.addAll(modules, extraModules);
+    // Reuse the previous snapshot if the content did not change
+    ConfigSnapshot previous = this.messagesByHash.get(snapshot.getHash());
+    if (previous != null) {
+      snapshot = previous;
+    } else {
+      this.messagesByHash.put(snapshot.getHash(), snapshot);
     }
-    for (Plugin plugin : plugins) {
-      modules.addAll(plugin.getModules());
+    if (key != null) {
+      this.messages.put(key + ":" + locale, snapshot);
     }
-    obj.element("modules", modules);
+    return snapshot;
+  }
 
-    return obj;
+  private static Writer writer(ByteArrayOutputStream out) {
+    return new OutputStreamWriter(out, StandardCharsets.UTF_8);
+  }
+
+  static void send(ConfigSnapshot snapshot, String cacheControl, HttpServletRequest req,
+      HttpServletResponse resp) throws IOException {
+    send(snapshot, cacheControl, "Accept-Encoding", req, resp);
+  }
+
+  private static void send(ConfigSnapshot snapshot, String cacheControl, String vary,
+      HttpServletRequest req, HttpServletResponse resp) throws IOException {
+    String encoding = ConfigSnapshot.selectEncoding(req.getHeader("Accept-Encoding"));
+    resp.setHeader("Cache-Control", cacheControl);
+    resp.setHeader("ETag", snapshot.getETag(encoding));
+    resp.setHeader("Vary", vary);
+    if (snapshot.matches(req.getHeader("If-None-Match"), encoding)) {
+      resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+    } else {
+      writePayload(snapshot, encoding, req, resp);
+    }
+  }
+
+  private static void writePayload(ConfigSnapshot snapshot, String encoding,
+      HttpServletRequest req, HttpServletResponse resp) throws IOException {
+    if (encoding != null) {
+      resp.setHeader("Content-Encoding", encoding);
+    }
+    byte[] payload = snapshot.getPayload(encoding);
+    resp.setContentLength(payload.length);
+    if (payload.length > PayloadWriteListener.CHUNK_SIZE && req.isAsyncSupported()
+        && !req.isAsyncStarted() && !PayloadWriteListener.isHead(req)) {
+      PayloadWriteListener.write(req.startAsync(req, resp), payload);
+    } else {
+      resp.getOutputStream().write(payload);
+    }
   }
 }
@@ -0,0 +1,190 @@
+package org.geoladris.servlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * <p>
+ * Serialized <code>config.js</code> payload, along with its gzip and deflate encodings. The strong
+ * entity tag of each encoding is the hash of the uncompressed payload plus a suffix for the
+ * encoding.
+ * </p>
+ *
+ * <p>
+ * The hash and the encodings are computed the first time they are needed, so uncompressed
+ * responses never pay for compression.
+ * </p>
+ */
+public class ConfigSnapshot {
+  public static final String GZIP = "gzip";
+  public static final String DEFLATE = "deflate";
+
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+  private final byte[] payload;
+  // computed on demand; a duplicate on a race is harmless
+  private volatile byte[] gzip, deflate;
+  private volatile String hash;
+
+  public ConfigSnapshot(byte[] payload) {
+    this.payload = payload;
+  }
+
+  public byte[] getPayload() {
+    return payload;
+  }
+
+  /**
+   * @param encoding {@link #GZIP}, {@link #DEFLATE} or null for the uncompressed payload.
+   * @return the payload with the given encoding.
+   */
+  public byte[] getPayload(String encoding) {
+    if (GZIP.equals(encoding)) {
+      byte[] ret = this.gzip;
+      if (ret == null) {
+        ret = compress(this.payload, GZIP);
+        this.gzip = ret;
+      }
+      return ret;
+    } else if (DEFLATE.equals(encoding)) {
+      byte[] ret = this.deflate;
+      if (ret == null) {
+        ret = compress(this.payload, DEFLATE);
+        this.deflate = ret;
+      }
+      return ret;
+    } else {
+      return payload;
+    }
+  }
+
+  /**
+   * @param acceptEncoding value of the <code>Accept-Encoding</code> request header. It can be null.
+   * @return the encoding to use for the response ({@link #GZIP} or {@link #DEFLATE}), or null if
+   *         the payload must be sent uncompressed.
+   */
+  public static String selectEncoding(String acceptEncoding) {
+    if (acceptEncoding == null) {
+      return null;
+    }
+
+    float gzipQ = 0, deflateQ = 0, anyQ = 0;
+    boolean gzipSet = false, deflateSet = false;
+    for (String token : acceptEncoding.split(",")) {
+      String[] parts = token.split(";");
+      String coding = parts[0].trim().toLowerCase();
+      float q = 1;
+      for (int i = 1; i < parts.length; i++) {
+        String param = parts[i].trim();
+        if (param.startsWith("q=")) {
+          try {
+            q = Float.parseFloat(param.substring(2));
+          } catch (NumberFormatException e) {
+            q = 0;
+          }
+        }
+      }
+
+      if (coding.equals(GZIP) || coding.equals("x-gzip")) {
+        gzipQ = q;
+        gzipSet = true;
+      } else if (coding.equals(DEFLATE)) {
+        deflateQ = q;
+        deflateSet = true;
+      } else if (coding.equals("*")) {
+        anyQ = q;
+      }
+    }
+
+    if (!gzipSet) {
+      gzipQ = anyQ;
+    }
+    if (!deflateSet) {
+      deflateQ = anyQ;
+    }
+
+    if (gzipQ > 0 && gzipQ >= deflateQ) {
+      return GZIP;
+    } else if (deflateQ > 0) {
+      return DEFLATE;
+    } else {
+      return null;
+    }
+  }
+
+  public String getHash() {
+    String ret = this.hash;
+    if (ret == null) {
+      ret = hash(this.payload);
+      this.hash = ret;
+    }
+    return ret;
+  }
+
+  /**
+   * @param encoding {@link #GZIP}, {@link #DEFLATE} or null for the uncompressed payload.
+   * @return the entity tag of the payload with the given encoding. Each encoding is a different
+   *         representation, so each one has its own strong entity tag.
+   */
+  public String getETag(String encoding) {
+    String suffix = GZIP.equals(encoding) ? "-gz" : DEFLATE.equals(encoding) ? "-df" : "";
+    return "\"" + getHash() + suffix + "\"";
+  }
+
+  /**
+   * @param ifNoneMatch value of the <code>If-None-Match</code> request header. It can be null.
+   * @param encoding encoding of the response, as in {@link #getETag(String)}.
+   * @return <code>true</code> if any of the entity tags in the header matches the payload with the
+   *         given encoding.
+   */
+  public boolean matches(String ifNoneMatch, String encoding) {
+    if (ifNoneMatch == null) {
+      return false;
+    }
+
+    String etag = getETag(encoding);
+    for (String tag : ifNoneMatch.split(",")) {
+      tag = tag.trim();
+      if (tag.startsWith("W/")) {
+        tag = tag.substring(2);
+      }
+      if (tag.equals("*") || tag.equals(etag)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static byte[] compress(byte[] content, String encoding) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(content.length / 4);
+    try {
+      OutputStream out = GZIP.equals(encoding) ? new GZIPOutputStream(bytes)
+          : new DeflaterOutputStream(bytes);
+      out.write(content);
+      out.close();
+    } catch (IOException e) {
+      // ignore, not an actual IO operation
+    }
+    return bytes.toByteArray();
+  }
+
+  static String hash(byte[] content) {
+    try {
+      byte[] digest = MessageDigest.getInstance("SHA-1").digest(content);
+      char[] ret = new char[digest.length * 2];
+      for (int i = 0; i < digest.length; i++) {
+        ret[2 * i] = HEX[(digest[i] >> 4) & 0xf];
+        ret[2 * i + 1] = HEX[digest[i] & 0xf];
+      }
+      return new String(ret);
+    } catch (NoSuchAlgorithmException e) {
+      // SHA-1 is required on every Java platform
+      throw new IllegalStateException(e);
+    }
+  }
+}
@@ -0,0 +1,280 @@
+package org.geoladris.servlet;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.MissingResourceException;
+import java.util.ResourceBundle;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.geoladris.Plugin;
+import org.geoladris.config.Config;
+
+import net.sf.json.JSONObject;
+import net.sf.json.JSONSerializer;
+import net.sf.json.util.JSONUtils;
+
+/**
+ * <p>
+ * Writes the RequireJS configuration directly to a {@link Writer}, without building the whole JSON
+ * document in memory.
+ * </p>
+ *
+ * <p>
+ * The configuration can be written as a whole (<code>config.js</code>) or split in two parts: a
+ * bootstrap script with the configuration that is the same for all requests and a small overlay
+ * with the per-request differences. The overlay defines the <code>require</code> variable and then
+ * loads the bootstrap script, which merges itself under the overlay.
+ * </p>
+ *
+ * <p>
+ * Messages are not included in the configuration; they are written separately by
+ * {@link #writeMessages(Writer, ResourceBundle)} and loaded with an additional script.
+ * </p>
+ *
+ * <p>
+ * Clients can also load the configuration with the script written by {@link #writeLoader(Writer)},
+ * which asks only for the changes since the version it kept in the local storage.
+ * </p>
+ */
+public class ConfigWriter {
+  /**
+   * Merges the overlay (<code>require</code> variable) into the bootstrap configuration. Null
+   * values remove the entry from the bootstrap configuration.
+   */
+  private static final String MERGE_FUNCTION = "function(overlay, base) {"
+      + "var sections = ['config', 'paths', 'shim'];"
+      + "function merge(from, to) {"
+      + "for (var key in from) {"
+      + "if (from.hasOwnProperty(key)) {"
+      + "if (from[key] === null) { delete to[key]; }"
+      + "else if (to === base.config && key === '" + RequireConfig.CUSTOMIZATION
+      + "' && to[key]) { merge(from[key], to[key]); }"
+      + "else { to[key] = from[key]; }"
+      + "}}}"
+      + "for (var i = 0; i < sections.length; i++) {"
+      + "merge(overlay[sections[i]] || {}, base[sections[i]]);"
+      + "}"
+      + "return base;"
+      + "}";
+
+  /**
+   * Requests <code>config.js</code> as a delta from the version kept in the local storage (see
+   * {@link ConfigWriter#writeDelta(Writer, String, RequireConfig, String, RequireConfig, String)}),
+   * applies it, keeps the result and defines the <code>require</code> variable with it.
+   */
+  private static final String LOADER_FUNCTION = "function(merge) {"
+      + "var key = 'geoladris.config', stored = null;"
+      + "try { stored = JSON.parse(localStorage.getItem(key)); } catch (e) { stored = null; }"
+      // Synchronous, require.js is loaded after this script
+      + "var xhr = new XMLHttpRequest();"
+      + "xhr.open('GET', 'config.js' + location.search, false);"
+      + "xhr.setRequestHeader('A-IM', '" + ConfigServlet.DELTA_IM + "');"
+      + "if (stored) { xhr.setRequestHeader('If-None-Match', '\"' + stored.hash + '\"'); }"
+      + "xhr.send();"
+      + "var current = stored;"
+      + "if (xhr.status !== 304 || !stored) {"
+      + "if (xhr.status !== 200 && xhr.status !== 226) {"
+      + "throw new Error('Cannot load config.js: ' + xhr.status);"
+      + "}"
+      + "var doc = JSON.parse(xhr.responseText);"
+      + "var base = doc.base ? stored.config : {config: {}, paths: {}, shim: {}};"
+      + "current = {hash: doc.hash, messages: doc.messages, config: merge(doc.delta, base)};"
+      + "try {"
+      + "if (doc.hash) { localStorage.setItem(key, JSON.stringify(current)); }"
+      + "else { localStorage.removeItem(key); }"
+      + "} catch (e) {}"
+      + "}"
+      + "window.require = current.config;"
+      + "document.write('<script src=\"' + current.messages + '\"></' + 'script>');"
+      + "}";
+
+  private Config config;
+
+  public ConfigWriter(Config config) {
+    this.config = config;
+  }
+
+  /**
+   * @param messagesUrl URL of the script with the messages, as written by
+   *        {@link #writeMessages(Writer, ResourceBundle)}.
+   * @return the configuration that has been written, to be used by
+   *         {@link #writeDelta(Writer, String, RequireConfig, String, RequireConfig, String)}.
+   */
+  public RequireConfig write(Writer out, Locale locale, HttpServletRequest request,
+      String messagesUrl) throws IOException {
+    RequireConfig ret = build(locale, request);
+    // Written scripts are executed after this one, so require is already defined
+    writeScript(out, messagesUrl);
+    out.write("var require = ");
+    ret.write(out);
+    out.flush();
+    return ret;
+  }
+
+  /**
+   * <p>
+   * Writes the changes between two versions of the configuration as a JSON document:
+   * </p>
+   *
+   * <pre>
+   * {"base": baseHash, "hash": hash, "messages": messagesUrl,
+   *  "delta": {"config": {...}, "paths": {...}, "shim": {...}}}
+   * </pre>
+   *
+   * <p>
+   * The delta contains the added and changed entries; removed entries are <code>null</code>. It
+   * is applied in the same way as the overlay on the bootstrap configuration. With a null
+   * <code>baseHash</code> and an empty <code>base</code>, the delta is the whole configuration.
+   * </p>
+   *
+   * @param hash hash of the current version; null if it cannot be the base of later deltas.
+   */
+  public static void writeDelta(Writer out, String baseHash, RequireConfig base, String hash,
+      RequireConfig current, String messagesUrl) throws IOException {
+    out.write("{\"base\":" + quote(baseHash));
+    out.write(",\"hash\":" + quote(hash));
+    out.write(",\"messages\":" + quote(messagesUrl));
+    out.write(",\"delta\":");
+    current.overlay(base).write(out);
+    out.write('}');
+    out.flush();
+  }
+
+  private static String quote(String value) {
+    return value != null ? JSONUtils.quote(value) : "null";
+  }
+
+  /**
+   * Writes the script that loads <code>config.js</code> through deltas. It can replace the
+   * <code>config.js</code> script in a page.
+   */
+  public static void writeLoader(Writer out) throws IOException {
+    out.write("(" + LOADER_FUNCTION + ")(" + MERGE_FUNCTION + ");");
+    out.flush();
+  }
+
+  /**
+   * Writes the whole configuration and the messages in a single script, to be inlined in a page.
+   *
+   * @param plugins The plugins returned by
+   *        {@link Config#getPluginConfig(Locale, HttpServletRequest)}.
+   */
+  public void writeInline(Writer out, Locale locale, HttpServletRequest request, Plugin[] plugins)
+      throws IOException {
+    out.write("var require = ");
+    build(locale, request, plugins).write(out);
+    out.write(";\n");
+    writeMessages(out, config.getMessages(locale));
+  }
+
+  /**
+   * Writes a script that sets the given messages as the configuration of the <code>i18n</code>
+   * module.
+   */
+  public void writeMessages(Writer out, ResourceBundle bundle) throws IOException {
+    out.write("require.config.i18n = ");
+    RequireConfig.writeValue(out, bundle);
+    out.write(';');
+    out.flush();
+  }
+
+  /**
+   * Writes the bootstrap script, with the configuration returned by
+   * {@link Config#getSharedPluginConfig(HttpServletRequest)}.
+   *
+   * @return the configuration that has been written, to be used as the base of
+   *         {@link #writeOverlay}.
+   */
+  public RequireConfig writeBootstrap(Writer out, HttpServletRequest request) throws IOException {
+    Plugin[] plugins = config.getSharedPluginConfig(request);
+
+    RequireConfig ret = new RequireConfig();
+    ret.putConfig(RequireConfig.CUSTOMIZATION, buildCustomizationObject(null, null, plugins));
+    ret.addPlugins(plugins);
+
+    out.write("var require = (" + MERGE_FUNCTION + ")(require, ");
+    ret.write(out);
+    out.write(");");
+    out.flush();
+    return ret;
+  }
+
+  /**
+   * Writes the overlay script, with the differences between the configuration for the given
+   * request and <code>bootstrap</code>.
+   *
+   * @param bootstrapUrl URL of the bootstrap script to load after the overlay.
+   * @param messagesUrl URL of the script with the messages, as written by
+   *        {@link #writeMessages(Writer, ResourceBundle)}.
+   */
+  public void writeOverlay(Writer out, Locale locale, HttpServletRequest request,
+      RequireConfig bootstrap, String bootstrapUrl, String messagesUrl) throws IOException {
+    out.write("var require = ");
+    build(locale, request).overlay(bootstrap).write(out);
+    out.write(";\n");
+    writeScript(out, bootstrapUrl);
+    writeScript(out, messagesUrl);
+    out.flush();
+  }
+
+  private static void writeScript(Writer out, String url) throws IOException {
+    out.write("document.write(" + JSONUtils.quote("<script src=\"" + url + "\">")
+        + " + '</' + 'script>');\n");
+  }
+
+  RequireConfig build(Locale locale, HttpServletRequest request) {
+    return build(locale, request, config.getPluginConfig(locale, request));
+  }
+
+  private RequireConfig build(Locale locale, HttpServletRequest request, Plugin[] plugins) {
+    String title = getTitle(config.getMessages(locale));
+
+    RequireConfig ret = new RequireConfig();
+    ret.putConfig(RequireConfig.CUSTOMIZATION, buildCustomizationObject(locale, title, plugins));
+    ret.putConfig("url-parameters", JSONSerializer.toJSON(request.getParameterMap()));
+    ret.addPlugins(plugins);
+    return ret;
+  }
+
+  static String getTitle(ResourceBundle bundle) {
+    try {
+      return bundle.getString("title");
+    } catch (MissingResourceException e) {
+      return "Untitled";
+    }
+  }
+
+  /**
+   * @param locale Locale for the customization object. If null, locale dependent values are not
+   *        included.
+   */
+  private JSONObject buildCustomizationObject(Locale locale, String title, Plugin[] plugins) {
+    JSONObject obj = new JSONObject();
+    if (locale != null) {
+      obj.element("title", title);
+    }
+    obj.element(Config.PROPERTY_LANGUAGES, (Object) config.getLanguageList());
+    if (locale != null) {
+      obj.element("languageCode", locale.getLanguage());
+    }
+    obj.element(Config.PROPERTY_MAP_CENTER,
+        (Object) config.getPropertyAsList(Config.PROPERTY_MAP_CENTER));
+    obj.element("map.initialZoomLevel", config.getProperties().get("map.initialZoomLevel"));
+
+    ArrayList<String> modules = new ArrayList<String>();
+    List<String> extraModules = config.getPropertyAsList(Config.PROPERTY_CLIENT_MODULES);
+    if (extraModules != null) {
+      modules.addAll(extraModules);
+    }
+    for (Plugin plugin : plugins) {
+      modules.addAll(plugin.getModules());
+    }
+    obj.element("modules", modules);
+
+    return obj;
+  }
+}
@@ -0,0 +1,408 @@
+package org.geoladris.servlet;
+
+import java.security.Principal;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+
+import javax.servlet.DispatcherType;
+import javax.servlet.ServletContext;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpSession;
+
+/**
+ * <p>
+ * Copy of the request data used to build the configuration: request line, parameters, headers,
+ * cookies, attributes, session, user and connection.
+ * </p>
+ *
+ * <p>
+ * Containers recycle the request once the asynchronous processing completes or times out, so the
+ * configuration is built from this copy instead of the actual request. The user, authentication
+ * type and principal are copied too. Role checks are delegated to the actual request until
+ * {@link #release()} is called, which must be done before the request is recycled. The other
+ * methods that cannot be copied (body, dispatchers, authentication...) throw an
+ * {@link IllegalStateException}, as role checks do once released.
+ * </p>
+ */
+public class DetachedRequest extends HttpServletRequestWrapper {
+  private static final String DATE_FORMAT = "EEE, dd MMM yyyy HH:mm:ss zzz";
+
+  private final String method, scheme, protocol, serverName, contextPath, servletPath, requestURI,
+      pathInfo, queryString, requestURL, authType, remoteUser, remoteAddr, localAddr,
+      requestedSessionId, contentType;
+  private final int serverPort, remotePort, localPort;
+  private final long contentLength;
+  private final boolean secure, requestedSessionIdValid, requestedSessionIdFromCookie,
+      requestedSessionIdFromURL;
+  private final Principal userPrincipal;
+  private final Locale locale;
+  private final List<Locale> locales;
+  private final Cookie[] cookies;
+  private final HttpSession session;
+  private final ServletContext servletContext;
+  private final DispatcherType dispatcherType;
+  private final Map<String, String[]> parameters;
+  private final Map<String, List<String>> headers = new LinkedHashMap<>();
+  private final Map<String, Object> attributes = new HashMap<>();
+  private String characterEncoding;
+  // for role checks; null once released
+  private volatile HttpServletRequest request;
+
+  public DetachedRequest(HttpServletRequest request) {
+    super(Unavailable.of(HttpServletRequest.class));
+    this.method = request.getMethod();
+    this.scheme = request.getScheme();
+    this.protocol = request.getProtocol();
+    this.serverName = request.getServerName();
+    this.serverPort = request.getServerPort();
+    this.contextPath = request.getContextPath();
+    this.servletPath = request.getServletPath();
+    this.requestURI = request.getRequestURI();
+    this.pathInfo = request.getPathInfo();
+    this.queryString = request.getQueryString();
+    StringBuffer url = request.getRequestURL();
+    this.requestURL = url != null ? url.toString() : null;
+    this.secure = request.isSecure();
+
+    this.authType = request.getAuthType();
+    this.remoteUser = request.getRemoteUser();
+    this.userPrincipal = request.getUserPrincipal();
+    this.request = request;
+    this.remoteAddr = request.getRemoteAddr();
+    this.remotePort = request.getRemotePort();
+    this.localAddr = request.getLocalAddr();
+    this.localPort = request.getLocalPort();
+
+    this.requestedSessionId = request.getRequestedSessionId();
+    this.requestedSessionIdValid = request.isRequestedSessionIdValid();
+    this.requestedSessionIdFromCookie = request.isRequestedSessionIdFromCookie();
+    this.requestedSessionIdFromURL = request.isRequestedSessionIdFromURL();
+    this.session = request.getSession();
+
+    this.locale = request.getLocale();
+    Enumeration<Locale> locales = request.getLocales();
+    this.locales = locales != null ? Collections.list(locales) : new ArrayList<Locale>();
+    this.characterEncoding = request.getCharacterEncoding();
+    this.contentType = request.getContentType();
+    this.contentLength = request.getContentLengthLong();
+    Cookie[] cookies = request.getCookies();
+    this.cookies = cookies != null ? cookies.clone() : null;
+    this.servletContext = request.getServletContext();
+    this.dispatcherType = request.getDispatcherType();
+
+    Map<String, String[]> parameters = request.getParameterMap();
+    this.parameters = Collections.unmodifiableMap(parameters != null
+        ? new LinkedHashMap<>(parameters) : Collections.<String, String[]>emptyMap());
+
+    Enumeration<String> names = request.getHeaderNames();
+    while (names != null && names.hasMoreElements()) {
+      String name = names.nextElement();
+      Enumeration<String> values = request.getHeaders(name);
+      this.headers.put(name.toLowerCase(),
+          values != null ? Collections.list(values) : new ArrayList<String>());
+    }
+
+    names = request.getAttributeNames();
+    while (names != null && names.hasMoreElements()) {
+      String name = names.nextElement();
+      this.attributes.put(name, request.getAttribute(name));
+    }
+  }
+
+  @Override
+  public String getMethod() {
+    return this.method;
+  }
+
+  @Override
+  public String getScheme() {
+    return this.scheme;
+  }
+
+  @Override
+  public String getProtocol() {
+    return this.protocol;
+  }
+
+  @Override
+  public String getServerName() {
+    return this.serverName;
+  }
+
+  @Override
+  public int getServerPort() {
+    return this.serverPort;
+  }
+
+  @Override
+  public boolean isSecure() {
+    return this.secure;
+  }
+
+  @Override
+  public String getContextPath() {
+    return this.contextPath;
+  }
+
+  @Override
+  public String getServletPath() {
+    return this.servletPath;
+  }
+
+  @Override
+  public String getRequestURI() {
+    return this.requestURI;
+  }
+
+  @Override
+  public StringBuffer getRequestURL() {
+    return this.requestURL != null ? new StringBuffer(this.requestURL) : null;
+  }
+
+  @Override
+  public String getPathInfo() {
+    return this.pathInfo;
+  }
+
+  @Override
+  public String getQueryString() {
+    return this.queryString;
+  }
+
+  @Override
+  public String getAuthType() {
+    return this.authType;
+  }
+
+  @Override
+  public String getRemoteUser() {
+    return this.remoteUser;
+  }
+
+  @Override
+  public Principal getUserPrincipal() {
+    return this.userPrincipal;
+  }
+
+  @Override
+  public boolean isUserInRole(String role) {
+    HttpServletRequest request = this.request;
+    if (request == null) {
+      throw new IllegalStateException("Roles cannot be checked once the request is released");
+    }
+    return request.isUserInRole(role);
+  }
+
+  /**
+   * Stops delegating role checks to the actual request, so it can be recycled.
+   */
+  void release() {
+    this.request = null;
+  }
+
+  @Override
+  public String getRemoteAddr() {
+    return this.remoteAddr;
+  }
+
+  @Override
+  public int getRemotePort() {
+    return this.remotePort;
+  }
+
+  @Override
+  public String getLocalAddr() {
+    return this.localAddr;
+  }
+
+  @Override
+  public int getLocalPort() {
+    return this.localPort;
+  }
+
+  @Override
+  public String getRequestedSessionId() {
+    return this.requestedSessionId;
+  }
+
+  @Override
+  public boolean isRequestedSessionIdValid() {
+    return this.requestedSessionIdValid;
+  }
+
+  @Override
+  public boolean isRequestedSessionIdFromCookie() {
+    return this.requestedSessionIdFromCookie;
+  }
+
+  @Override
+  public boolean isRequestedSessionIdFromURL() {
+    return this.requestedSessionIdFromURL;
+  }
+
+  @Override
+  @Deprecated
+  public boolean isRequestedSessionIdFromUrl() {
+    return this.requestedSessionIdFromURL;
+  }
+
+  @Override
+  public HttpSession getSession() {
+    return this.session;
+  }
+
+  @Override
+  public HttpSession getSession(boolean create) {
+    return this.session;
+  }
+
+  @Override
+  public Locale getLocale() {
+    return this.locale;
+  }
+
+  @Override
+  public Enumeration<Locale> getLocales() {
+    return Collections.enumeration(this.locales);
+  }
+
+  @Override
+  public String getCharacterEncoding() {
+    return this.characterEncoding;
+  }
+
+  @Override
+  public void setCharacterEncoding(String env) {
+    this.characterEncoding = env;
+  }
+
+  @Override
+  public String getContentType() {
+    return this.contentType;
+  }
+
+  @Override
+  public int getContentLength() {
+    return this.contentLength <= Integer.MAX_VALUE ? (int) this.contentLength : -1;
+  }
+
+  @Override
+  public long getContentLengthLong() {
+    return this.contentLength;
+  }
+
+  @Override
+  public Cookie[] getCookies() {
+    return this.cookies != null ? this.cookies.clone() : null;
+  }
+
+  @Override
+  public ServletContext getServletContext() {
+    return this.servletContext;
+  }
+
+  @Override
+  public DispatcherType getDispatcherType() {
+    return this.dispatcherType;
+  }
+
+  @Override
+  public Map<String, String[]> getParameterMap() {
+    return this.parameters;
+  }
+
+  @Override
+  public String getParameter(String name) {
+    String[] values = this.parameters.get(name);
+    return values != null && values.length > 0 ? values[0] : null;
+  }
+
+  @Override
+  public String[] getParameterValues(String name) {
+    return this.parameters.get(name);
+  }
+
+  @Override
+  public Enumeration<String> getParameterNames() {
+    return Collections.enumeration(this.parameters.keySet());
+  }
+
+  @Override
+  public String getHeader(String name) {
+    List<String> values = this.headers.get(name.toLowerCase());
+    return values != null && !values.isEmpty() ? values.get(0) : null;
+  }
+
+  @Override
+  public Enumeration<String> getHeaders(String name) {
+    List<String> values = this.headers.get(name.toLowerCase());
+    return Collections.enumeration(values != null ? values : new ArrayList<String>());
+  }
+
+  @Override
+  public Enumeration<String> getHeaderNames() {
+    return Collections.enumeration(this.headers.keySet());
+  }
+
+  @Override
+  public int getIntHeader(String name) {
+    String value = getHeader(name);
+    return value != null ? Integer.parseInt(value.trim()) : -1;
+  }
+
+  @Override
+  public long getDateHeader(String name) {
+    String value = getHeader(name);
+    if (value == null) {
+      return -1;
+    }
+    SimpleDateFormat format = new SimpleDateFormat(DATE_FORMAT, Locale.US);
+    format.setTimeZone(TimeZone.getTimeZone("GMT"));
+    try {
+      return format.parse(value.trim()).getTime();
+    } catch (ParseException e) {
+      throw new IllegalArgumentException("Invalid date header " + name + ": " + value);
+    }
+  }
+
+  @Override
+  public Object getAttribute(String name) {
+    return this.attributes.get(name);
+  }
+
+  @Override
+  public Enumeration<String> getAttributeNames() {
+    return Collections.enumeration(this.attributes.keySet());
+  }
+
+  @Override
+  public void setAttribute(String name, Object value) {
+    this.attributes.put(name, value);
+  }
+
+  @Override
+  public void removeAttribute(String name) {
+    this.attributes.remove(name);
+  }
+
+  @Override
+  public boolean isAsyncSupported() {
+    return false;
+  }
+
+  @Override
+  public boolean isAsyncStarted() {
+    return false;
+  }
+}
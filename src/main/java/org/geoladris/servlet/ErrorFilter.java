@@ -28,32 +28,38 @@ public class ErrorFilter implements Filter {
     try {
       chain.doFilter(request, response);
     } catch (Throwable e) {
+      sendError((HttpServletResponse) response, e);
+    }
+  }
 
-      String errorMsg = "Server error: ";
-      HttpServletResponse httpResponse = (HttpServletResponse) response;
-      int status;
-      if (e instanceof StatusServletException) {
-        status = ((StatusServletException) e).getStatus();
-      } else {
-        status = 500;
-      }
-      httpResponse.setStatus(status);
-      if (status == 500) {
-        logger.error("Error handling request", e);
-      } else {
-        logger.error("Error handling request: " + e.getMessage());
-      }
-      while (e != null) {
-        errorMsg += e.getMessage() + ". ";
-        e = e.getCause();
-      }
-      response.setContentType("application/json");
-      response.setCharacterEncoding("utf8");
-
-      HashMap<String, String> doc = new HashMap<String, String>();
-      doc.put("message", errorMsg);
-      response.getOutputStream().write(JSONSerializer.toJSON(doc).toString(0).getBytes());
+  /**
+   * Sends the error as a JSON document with a <code>message</code>. The status is taken from
+   * {@link StatusServletException}, or 500 for any other exception.
+   */
+  static void sendError(HttpServletResponse response, Throwable e) throws IOException {
+    String errorMsg = "Server error: ";
+    int status;
+    if (e instanceof StatusServletException) {
+      status = ((StatusServletException) e).getStatus();
+    } else {
+      status = 500;
+    }
+    response.setStatus(status);
+    if (status == 500) {
+      logger.error("Error handling request", e);
+    } else {
+      logger.error("Error handling request: " + e.getMessage());
     }
+    while (e != null) {
+      errorMsg += e.getMessage() + ". ";
+      e = e.getCause();
+    }
+    response.setContentType("application/json");
+    response.setCharacterEncoding("utf8");
+
+    HashMap<String, String> doc = new HashMap<String, String>();
+    doc.put("message", errorMsg);
+    response.getOutputStream().write(JSONSerializer.toJSON(doc).toString(0).getBytes());
   }
 
   @Override
@@ -0,0 +1,147 @@
+package org.geoladris.servlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.servlet.ServletException;
+import javax.servlet.UnavailableException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.log4j.Logger;
+import org.geoladris.Environment;
+import org.geoladris.Geoladris;
+import org.geoladris.Plugin;
+import org.geoladris.config.Config;
+import org.geoladris.config.ExpiringCache;
+import org.geoladris.config.SingleFlight;
+
+import net.sf.json.JSONArray;
+
+/**
+ * <p>
+ * Renders the index page from <code>templates/index.html</code>, with the title, the plugin
+ * stylesheets and the whole configuration inlined, so the browser does not need to request
+ * <code>config.js</code> before loading the application.
+ * </p>
+ *
+ * <p>
+ * Pages are cached by locale, role, URL parameters and configuration cache key, and served with
+ * entity tags. The servlet is only registered, for the context root and <code>/index.html</code>,
+ * if {@link Environment#RENDER_INDEX} is enabled (see {@link AppContextListener}); otherwise, the
+ * static <code>index.html</code> is served as a welcome file.
+ * </p>
+ */
+public class IndexServlet extends HttpServlet {
+  private static final long serialVersionUID = 1L;
+  private static final Logger logger = Logger.getLogger(IndexServlet.class);
+
+  static final String TEMPLATE = "/templates/index.html";
+  static final String CONFIG_SCRIPT = "<script src=\"config/overlay.js\"></script>";
+
+  private static final int MAX_PAGES = 64;
+
+  private final Map<String, ConfigSnapshot> pages = ConfigServlet.lru(MAX_PAGES);
+  private final SingleFlight<String, ConfigSnapshot> renders = new SingleFlight<>();
+  private String template;
+
+  @Override
+  public void init() throws ServletException {
+    InputStream stream = getClass().getResourceAsStream(TEMPLATE);
+    if (stream == null) {
+      throw new UnavailableException("Cannot find " + TEMPLATE);
+    }
+    try {
+      this.template = IOUtils.toString(stream, StandardCharsets.UTF_8);
+    } catch (IOException e) {
+      logger.error("Cannot read " + TEMPLATE, e);
+      throw new UnavailableException("Cannot read " + TEMPLATE);
+    } finally {
+      IOUtils.closeQuietly(stream);
+    }
+  }
+
+  @Override
+  protected void doGet(final HttpServletRequest req, HttpServletResponse resp)
+      throws ServletException, IOException {
+    final Config config = (Config) getServletContext().getAttribute(Geoladris.ATTR_CONFIG);
+    HttpSession session = req.getSession();
+    final Locale locale = (Locale) session.getAttribute(Geoladris.ATTR_LOCALE);
+
+    resp.setContentType("text/html");
+    resp.setCharacterEncoding("utf8");
+
+    String key = config.getCacheKey(locale, req);
+    if (key == null) {
+      resp.setHeader("Cache-Control", "no-cache");
+      render(config, locale, req, resp.getWriter());
+      return;
+    }
+
+    final String pageKey =
+        key + "?" + req.getQueryString() + "#" + session.getAttribute(Geoladris.ATTR_ROLE);
+    ConfigSnapshot snapshot = this.pages.get(pageKey);
+    if (snapshot == null) {
+      // Only one request renders the page for the key; the rest wait for it
+      snapshot = this.renders.load(pageKey, new ExpiringCache.Loader<ConfigSnapshot>() {
+        @Override
+        public ConfigSnapshot load() throws IOException {
+          ConfigSnapshot page = pages.get(pageKey);
+          if (page == null) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            render(config, locale, req, new OutputStreamWriter(out, StandardCharsets.UTF_8));
+            page = new ConfigSnapshot(out.toByteArray());
+            pages.put(pageKey, page);
+          }
+          return page;
+        }
+      });
+    }
+
+    ConfigServlet.send(snapshot, "private, no-cache", req, resp);
+  }
+
+  private void render(Config config, Locale locale, HttpServletRequest req, Writer out)
+      throws IOException {
+    Plugin[] plugins = config.getPluginConfig(locale, req);
+
+    StringWriter script = new StringWriter();
+    new ConfigWriter(config).writeInline(script, locale, req, plugins);
+
+    List<String> stylesheets = new ArrayList<>();
+    for (Plugin plugin : plugins) {
+      stylesheets.addAll(plugin.getStylesheets());
+    }
+
+    String title = ConfigWriter.getTitle(config.getMessages(locale));
+    String html = this.template.replace("$title", escapeHtml(title))
+        .replace("$stylesheets", escapeScript(JSONArray.fromObject(stylesheets).toString()))
+        .replace(CONFIG_SCRIPT, "<script>" + escapeScript(script.toString()) + "</script>");
+    out.write(html);
+    out.flush();
+  }
+
+  private static String escapeHtml(String text) {
+    return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"",
+        "&quot;");
+  }
+
+  /**
+   * Avoids closing the script element; <code>&lt;/</code> only appears within JS strings.
+   */
+  private static String escapeScript(String script) {
+    return script.replace("</", "<\\/");
+  }
+}
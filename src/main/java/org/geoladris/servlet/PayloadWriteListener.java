@@ -0,0 +1,118 @@
+package org.geoladris.servlet;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+
+import org.apache.log4j.Logger;
+
+/**
+ * <p>
+ * Writes a payload in chunks, only when the output stream is ready, and completes the
+ * {@link AsyncContext} once it has been written. This way no thread waits for slow clients.
+ * </p>
+ *
+ * <p>
+ * The context keeps its timeout, so it is completed even if the container never calls the
+ * listener. HEAD requests are written synchronously, since their output streams discard the body
+ * and may never call the listener.
+ * </p>
+ */
+public class PayloadWriteListener implements WriteListener, AsyncListener {
+  private static final Logger logger = Logger.getLogger(PayloadWriteListener.class);
+
+  static final int CHUNK_SIZE = 8192;
+  // used if the context has no timeout
+  static final long WRITE_TIMEOUT = 60000;
+
+  private final AsyncContext async;
+  private final ServletOutputStream out;
+  private final byte[] payload;
+  private int offset;
+  private final AtomicBoolean completed = new AtomicBoolean();
+
+  private PayloadWriteListener(AsyncContext async, ServletOutputStream out, byte[] payload) {
+    this.async = async;
+    this.out = out;
+    this.payload = payload;
+  }
+
+  /**
+   * Starts writing the payload to the response of the given context.
+   */
+  public static void write(AsyncContext async, byte[] payload) throws IOException {
+    ServletOutputStream out = async.getResponse().getOutputStream();
+    if (isHead(async.getRequest())) {
+      out.write(payload);
+      async.complete();
+      return;
+    }
+
+    // Only when the context has just been started; afterwards the timeout cannot be changed
+    if (async.getTimeout() <= 0) {
+      async.setTimeout(WRITE_TIMEOUT);
+    }
+    PayloadWriteListener listener = new PayloadWriteListener(async, out, payload);
+    async.addListener(listener);
+    out.setWriteListener(listener);
+  }
+
+  static boolean isHead(ServletRequest request) {
+    return request instanceof HttpServletRequest
+        && "HEAD".equals(((HttpServletRequest) request).getMethod());
+  }
+
+  @Override
+  public void onWritePossible() throws IOException {
+    while (this.out.isReady()) {
+      if (this.offset >= this.payload.length) {
+        complete();
+        return;
+      }
+      int length = Math.min(CHUNK_SIZE, this.payload.length - this.offset);
+      this.out.write(this.payload, this.offset, length);
+      this.offset += length;
+    }
+  }
+
+  @Override
+  public void onError(Throwable t) {
+    logger.info("Cannot send the configuration: " + t.getMessage());
+    complete();
+  }
+
+  @Override
+  public void onTimeout(AsyncEvent event) {
+    logger.info("Timeout sending the configuration; " + this.offset + " of "
+        + this.payload.length + " bytes written");
+    complete();
+  }
+
+  @Override
+  public void onError(AsyncEvent event) {
+    complete();
+  }
+
+  @Override
+  public void onComplete(AsyncEvent event) {
+    this.completed.set(true);
+  }
+
+  @Override
+  public void onStartAsync(AsyncEvent event) {
+    // nothing to do
+  }
+
+  private void complete() {
+    if (this.completed.compareAndSet(false, true)) {
+      this.async.complete();
+    }
+  }
+}
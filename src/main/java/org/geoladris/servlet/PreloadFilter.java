@@ -0,0 +1,47 @@
+package org.geoladris.servlet;
+
+import java.io.IOException;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.geoladris.Environment;
+import org.geoladris.Geoladris;
+import org.geoladris.config.Config;
+
+/**
+ * Adds the {@link Preloads} header to the index page.
+ */
+public class PreloadFilter implements Filter {
+  private ServletContext context;
+  private Preloads preloads;
+
+  @Override
+  public void init(FilterConfig filterConfig) throws ServletException {
+    this.context = filterConfig.getServletContext();
+    this.preloads = new Preloads(Environment.getInstance().getPreloadBudget(this.context));
+  }
+
+  @Override
+  public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+      throws IOException, ServletException {
+    HttpServletRequest req = (HttpServletRequest) request;
+    String path = req.getRequestURI().substring(req.getContextPath().length());
+    if (path.isEmpty() || path.equals("/") || path.equals("/index.html")) {
+      Config config = (Config) this.context.getAttribute(Geoladris.ATTR_CONFIG);
+      this.preloads.addHeader(config, req, (HttpServletResponse) response);
+    }
+
+    chain.doFilter(request, response);
+  }
+
+  @Override
+  public void destroy() {}
+}
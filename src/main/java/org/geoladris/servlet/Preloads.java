@@ -0,0 +1,112 @@
+package org.geoladris.servlet;
+
+import java.util.Locale;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+
+import org.geoladris.Geoladris;
+import org.geoladris.Plugin;
+import org.geoladris.config.Config;
+
+/**
+ * <p>
+ * Builds the <code>Link</code> header to preload the stylesheets and modules of the enabled
+ * plugins, so the browser does not have to wait for RequireJS to discover them.
+ * </p>
+ *
+ * <p>
+ * Stylesheets go first, since they block rendering. Entries are added until the header reaches
+ * the budget. The header is built from the plugins enabled for the request, as returned by
+ * {@link Config#getPluginConfig(Locale, HttpServletRequest)}, and cached by
+ * {@link Config#getCacheKey(Locale, HttpServletRequest)}. If there is no key, it is built for each
+ * request.
+ * </p>
+ */
+public class Preloads {
+  private static final int MAX_HEADERS = 64;
+
+  private final int budget;
+  // by cache key; empty if there is nothing to preload
+  private final Map<String, String> headers = ConfigServlet.lru(MAX_HEADERS);
+
+  /**
+   * @param budget maximum length of the header. If zero, no header is added.
+   */
+  public Preloads(int budget) {
+    this.budget = budget;
+  }
+
+  /**
+   * Sets the <code>Link</code> header in the response, if there is anything to preload.
+   */
+  public void addHeader(Config config, HttpServletRequest request, HttpServletResponse response) {
+    String header = getHeader(config, request);
+    if (header != null) {
+      response.setHeader("Link", header);
+    }
+  }
+
+  /**
+   * @return the value of the <code>Link</code> header, or null if there is nothing to preload.
+   */
+  public String getHeader(Config config, HttpServletRequest request) {
+    if (this.budget <= 0) {
+      return null;
+    }
+
+    HttpSession session = request.getSession();
+    Locale locale = session != null ? (Locale) session.getAttribute(Geoladris.ATTR_LOCALE) : null;
+    String key = config.getCacheKey(locale, request);
+    String header = key != null ? this.headers.get(key) : null;
+    if (header == null) {
+      Plugin[] plugins = config.getPluginConfig(locale, request);
+      header = build(plugins, request.getContextPath(), this.budget);
+      if (header == null) {
+        header = "";
+      }
+      if (key != null) {
+        this.headers.put(key, header);
+      }
+    }
+    return header.isEmpty() ? null : header;
+  }
+
+  static String build(Plugin[] plugins, String contextPath, int budget) {
+    StringBuilder ret = new StringBuilder();
+    for (Plugin plugin : plugins) {
+      for (String stylesheet : plugin.getStylesheets()) {
+        if (!append(ret, contextPath + "/" + stylesheet, "style", budget)) {
+          return toHeader(ret);
+        }
+      }
+    }
+    for (Plugin plugin : plugins) {
+      for (String module : plugin.getModules()) {
+        if (!append(ret, contextPath + "/" + module + ".js", "script", budget)) {
+          return toHeader(ret);
+        }
+      }
+    }
+    return toHeader(ret);
+  }
+
+  private static boolean append(StringBuilder header, String url, String as, int budget) {
+    String link = "<" + url + ">; rel=preload; as=" + as;
+    int length = header.length() + (header.length() > 0 ? 2 : 0) + link.length();
+    if (length > budget) {
+      return false;
+    }
+    if (header.length() > 0) {
+      header.append(", ");
+    }
+    header.append(link);
+    return true;
+  }
+
+  private static String toHeader(StringBuilder header) {
+    return header.length() > 0 ? header.toString() : null;
+  }
+}
@@ -0,0 +1,156 @@
+package org.geoladris.servlet;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.ResourceBundle;
+import java.util.TreeSet;
+
+import org.geoladris.Plugin;
+
+import net.sf.json.JSON;
+import net.sf.json.JSONNull;
+import net.sf.json.JSONObject;
+import net.sf.json.util.JSONUtils;
+
+/**
+ * RequireJS configuration object (<code>config</code>, <code>paths</code> and <code>shim</code>)
+ * written by {@link ConfigWriter}. Values are kept by reference and serialized only when
+ * {@link #write(Writer)} is called.
+ */
+public class RequireConfig {
+  public static final String CUSTOMIZATION = "customization";
+
+  private final Map<String, Object> config = new LinkedHashMap<>();
+  private final Map<String, Object> paths = new LinkedHashMap<>();
+  private final Map<String, Object> shim = new LinkedHashMap<>();
+
+  public void putConfig(String key, Object value) {
+    this.config.put(key, value);
+  }
+
+  /**
+   * Adds the configuration, paths and shim of the given plugins. Entries are added with the same
+   * semantics as {@link JSONObject#putAll(Map)}: the last value wins and keeps the position of the
+   * first one.
+   *
+   * @param plugins
+   */
+  public void addPlugins(Plugin[] plugins) {
+    for (Plugin plugin : plugins) {
+      putAll(this.config, plugin.getConfiguration());
+
+      JSONObject requirejs = plugin.getRequireJS();
+      if (requirejs != null && !requirejs.isNullObject()) {
+        putAll(this.paths, requirejs.optJSONObject("paths"));
+        putAll(this.shim, requirejs.optJSONObject("shim"));
+      }
+    }
+  }
+
+  /**
+   * @param base
+   * @return the entries of this configuration that are not in <code>base</code> or have a different
+   *         value. Entries in <code>base</code> that are not in this configuration are
+   *         <code>null</code>. The {@link #CUSTOMIZATION} object is compared key by key.
+   */
+  public RequireConfig overlay(RequireConfig base) {
+    RequireConfig ret = new RequireConfig();
+    diff(base.config, this.config, ret.config, true);
+    diff(base.paths, this.paths, ret.paths, false);
+    diff(base.shim, this.shim, ret.shim, false);
+    return ret;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static void diff(Map<String, Object> base, Map<String, Object> current,
+      Map<String, Object> ret, boolean isConfig) {
+    for (Map.Entry<String, Object> entry : current.entrySet()) {
+      String key = entry.getKey();
+      Object value = entry.getValue();
+      Object baseValue = base.get(key);
+      if (isConfig && key.equals(CUSTOMIZATION) && value instanceof JSONObject
+          && baseValue instanceof JSONObject) {
+        Map<String, Object> customization = new LinkedHashMap<>();
+        diff((Map<String, Object>) baseValue, (Map<String, Object>) value, customization, false);
+        if (!customization.isEmpty()) {
+          ret.put(key, customization);
+        }
+      } else if (!equal(baseValue, value)) {
+        ret.put(key, value);
+      }
+    }
+    for (String key : base.keySet()) {
+      if (!current.containsKey(key)) {
+        ret.put(key, JSONNull.getInstance());
+      }
+    }
+  }
+
+  private static boolean equal(Object a, Object b) {
+    return a == b || (a != null && a.equals(b));
+  }
+
+  public void write(Writer out) throws IOException {
+    out.write("{\"config\":");
+    writeObject(out, this.config);
+    out.write(",\"paths\":");
+    writeObject(out, this.paths);
+    out.write(",\"shim\":");
+    writeObject(out, this.shim);
+    out.write('}');
+  }
+
+  private static void putAll(Map<String, Object> map, JSONObject json) {
+    if (json == null || json.isNullObject()) {
+      return;
+    }
+    for (Object key : json.keySet()) {
+      map.put(key.toString(), json.get(key));
+    }
+  }
+
+  private static void writeObject(Writer out, Map<?, ?> map) throws IOException {
+    out.write('{');
+    boolean first = true;
+    for (Map.Entry<?, ?> entry : map.entrySet()) {
+      if (!first) {
+        out.write(',');
+      }
+      first = false;
+      out.write(JSONUtils.quote(entry.getKey().toString()));
+      out.write(':');
+      writeValue(out, entry.getValue());
+    }
+    out.write('}');
+  }
+
+  static void writeValue(Writer out, Object value) throws IOException {
+    if (value instanceof JSON) {
+      ((JSON) value).write(out);
+    } else if (value instanceof Map) {
+      writeObject(out, (Map<?, ?>) value);
+    } else if (value instanceof ResourceBundle) {
+      writeBundle(out, (ResourceBundle) value);
+    } else {
+      out.write(JSONUtils.valueToString(value));
+    }
+  }
+
+  private static void writeBundle(Writer out, ResourceBundle bundle) throws IOException {
+    out.write('{');
+    boolean first = true;
+    // Sorted so that equal bundles are always serialized in the same way
+    for (String key : new TreeSet<>(bundle.keySet())) {
+      if (!first) {
+        out.write(',');
+      }
+      first = false;
+      out.write(JSONUtils.quote(key));
+      out.write(':');
+      out.write(JSONUtils.quote(bundle.getString(key)));
+    }
+    out.write('}');
+  }
+}
@@ -0,0 +1,36 @@
+package org.geoladris.servlet;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+/**
+ * Request or response failing on every call. Wrapped by {@link DetachedRequest} and
+ * {@link BufferedResponse} so that a method they do not cover fails instead of using an actual
+ * request or response that the container may have recycled.
+ */
+final class Unavailable {
+  private Unavailable() {}
+
+  static <T> T of(final Class<T> type) {
+    Object proxy = Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type},
+        new InvocationHandler() {
+          @Override
+          public Object invoke(Object proxy, Method method, Object[] args) {
+            if (method.getDeclaringClass() == Object.class) {
+              switch (method.getName()) {
+                case "equals":
+                  return proxy == args[0];
+                case "hashCode":
+                  return System.identityHashCode(proxy);
+                default:
+                  return "Unavailable " + type.getSimpleName();
+              }
+            }
+            throw new IllegalStateException(type.getSimpleName() + "." + method.getName()
+                + " is not available once detached");
+          }
+        });
+    return type.cast(proxy);
+  }
+}
@@ -0,0 +1,85 @@
+package org.geoladris;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class FileChangeWatcherTest {
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  private FileChangeWatcher watcher;
+  private AtomicInteger nActions;
+
+  @Before
+  public void setup() throws IOException {
+    this.nActions = new AtomicInteger();
+    this.watcher = FileChangeWatcher.start();
+  }
+
+  @After
+  public void teardown() {
+    this.watcher.close();
+  }
+
+  @Test
+  public void callsActionOnModification() throws Exception {
+    File file = tmp.newFile("portal.properties");
+    watcher.watch(file, new TestAction());
+
+    FileUtils.write(file, "title=Geoladris");
+    waitForActions(1);
+
+    assertTrue(nActions.get() > 0);
+  }
+
+  @Test
+  public void ignoresOtherFiles() throws Exception {
+    File file = tmp.newFile("portal.properties");
+    watcher.watch(file, new TestAction());
+
+    FileUtils.write(tmp.newFile("public-conf.json"), "{}");
+    // Wait a bit until the watcher does its job
+    Thread.sleep(300);
+
+    assertEquals(0, nActions.get());
+  }
+
+  @Test
+  public void watchesFilesWithinDirectoryCreatedLater() throws Exception {
+    File dir = new File(tmp.getRoot(), "role_conf");
+    watcher.watch(dir, new TestAction());
+
+    dir.mkdir();
+    waitForActions(1);
+    int n = nActions.get();
+
+    FileUtils.write(new File(dir, "admin.json"), "{}");
+    waitForActions(n + 1);
+
+    assertTrue(nActions.get() > n);
+  }
+
+  private void waitForActions(int n) throws InterruptedException {
+    for (int i = 0; i < 50 && nActions.get() < n; i++) {
+      Thread.sleep(100);
+    }
+  }
+
+  private class TestAction implements Runnable {
+    @Override
+    public void run() {
+      nActions.incrementAndGet();
+    }
+  }
+}
@@ -133,6 +133,23 @@ public class PluginDirsAnalyzerTest {
     assertEquals(0, analyzer.getPlugins().size());
   }
 
+  @Test
+  public void scansStylesheets() throws IOException {
+    File dir = tmp.newFolder("test");
+    File cssDir = new File(dir, "p/" + PluginDirsAnalyzer.STYLES + "/sub");
+    cssDir.mkdirs();
+    new File(cssDir, "a.css").createNewFile();
+    new File(cssDir, "b.txt").createNewFile();
+    File srcDir = new File(dir, "p/" + PluginDirsAnalyzer.MODULES + "/sub");
+    srcDir.mkdirs();
+    new File(srcDir, "c.css").createNewFile();
+
+    PluginDirsAnalyzer analyzer = new PluginDirsAnalyzer(dir);
+    Plugin plugin = analyzer.getPlugins().iterator().next();
+    checkList(plugin.getStylesheets(), "p/css/sub/a.css", "p/sub/c.css");
+    assertEquals(0, plugin.getModules().size());
+  }
+
   private PluginDirsAnalyzer getAnalyzer(String dir) {
     final String root = "src/test/resources/" + dir;
     return new PluginDirsAnalyzer(new File(root, "WEB-INF/classes"), new File(root, "plugins"));
@@ -2,6 +2,7 @@ package org.geoladris;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
@@ -173,6 +174,98 @@ public class PluginTest {
     assertFalse(plugin.isInstallInRoot());
   }
 
+  @Test
+  public void overlaySharesUntilModified() {
+    Plugin plugin = new Plugin("p", JSONObject.fromObject("{default-conf : {m1 : {a : 1}}}"));
+    plugin.addModule("m1");
+
+    Plugin overlay = plugin.createOverlay();
+    assertSame(plugin.getConfiguration(), overlay.getConfiguration());
+    assertEquals(plugin.getModules(), overlay.getModules());
+
+    overlay.setConfiguration(JSONObject.fromObject("{m1 : {b : 2}}"));
+    overlay.addModule("m2");
+
+    assertEquals(1, plugin.getConfiguration().getJSONObject("p/m1").size());
+    assertEquals(2, overlay.getConfiguration().getJSONObject("p/m1").size());
+    assertEquals(1, plugin.getModules().size());
+    assertEquals(2, overlay.getModules().size());
+
+    plugin.addModule("m3");
+    assertFalse(overlay.getModules().contains("p/m3"));
+  }
+
+  @Test
+  public void concurrentOverlaysDoNotModifyBase() throws Exception {
+    final Plugin plugin =
+        new Plugin("p", JSONObject.fromObject("{default-conf : {m1 : {a : 1}}}"));
+    plugin.addModule("m1");
+    final String configuration = plugin.getConfiguration().toString();
+
+    Thread[] threads = new Thread[8];
+    for (int i = 0; i < threads.length; i++) {
+      threads[i] = new Thread() {
+        @Override
+        public void run() {
+          for (int j = 0; j < 1000; j++) {
+            Plugin overlay = plugin.createOverlay();
+            overlay.setConfiguration(JSONObject.fromObject("{m1 : {b : " + j + "}}"));
+            overlay.addModule("m" + j);
+          }
+        }
+      };
+      threads[i].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    assertEquals(configuration, plugin.getConfiguration().toString());
+    assertEquals(1, plugin.getModules().size());
+  }
+
+  @Test
+  public void unqualifiedConfigurationBuiltOncePerChange() {
+    Plugin plugin = new Plugin("p", JSONObject.fromObject("{default-conf : {m1 : {a : 1}}}"));
+
+    JSONObject unqualified = plugin.getUnqualifiedConfiguration();
+    assertEquals(1, unqualified.getJSONObject("m1").getInt("a"));
+    assertSame(unqualified, plugin.getUnqualifiedConfiguration());
+    assertSame(unqualified, plugin.createOverlay().getUnqualifiedConfiguration());
+
+    plugin.setConfiguration(JSONObject.fromObject("{m2 : {b : 2}}"));
+    JSONObject changed = plugin.getUnqualifiedConfiguration();
+    assertTrue(changed.has("m1"));
+    assertTrue(changed.has("m2"));
+    assertFalse(unqualified.has("m2"));
+  }
+
+  @Test
+  public void unqualifiedConfigurationInstalledInRoot() {
+    Plugin plugin = new Plugin("p", true);
+    plugin.setConfiguration(JSONObject.fromObject("{m1 : {a : 1}}"));
+    assertSame(plugin.getConfiguration(), plugin.getUnqualifiedConfiguration());
+  }
+
+  @Test
+  public void sharedConfigurationIsNotModified() {
+    Plugin plugin = new Plugin("p", false);
+    plugin.setConfiguration(JSONObject.fromObject("{m1 : {a : 1}, _enabled : false}"));
+
+    Plugin other = new Plugin("p", false);
+    other.shareConfiguration(plugin);
+    assertSame(plugin.getConfiguration(), other.getConfiguration());
+    assertSame(plugin.getUnqualifiedConfiguration(), other.getUnqualifiedConfiguration());
+    assertFalse(other.isEnabled());
+
+    other.setConfiguration(JSONObject.fromObject("{m1 : {a : 2}}"));
+    assertEquals(1, plugin.getConfiguration().getJSONObject("p/m1").get("a"));
+    assertEquals(2, other.getConfiguration().getJSONObject("p/m1").get("a"));
+
+    plugin.setConfiguration(JSONObject.fromObject("{m1 : {a : 3}}"));
+    assertEquals(2, other.getConfiguration().getJSONObject("p/m1").get("a"));
+  }
+
   @Test
   public void toStringReturnsName() {
     String name = "p";
@@ -91,7 +91,13 @@ public class TestingServletContext {
           }
 
           @Override
-          public void setWriteListener(WriteListener arg0) {}
+          public void setWriteListener(WriteListener listener) {
+            try {
+              listener.onWritePossible();
+            } catch (IOException e) {
+              listener.onError(e);
+            }
+          }
         };
       }
     });
@@ -161,8 +167,14 @@ public class TestingServletContext {
   }
 
   public String getResponse() {
-    this.writer.flush();
-    this.writer.close();
+    if (this.writer != null) {
+      this.writer.flush();
+      this.writer.close();
+    }
     return this.out.toString();
   }
+
+  public byte[] getResponseBytes() {
+    return this.out.toByteArray();
+  }
 }
@@ -0,0 +1,38 @@
+package org.geoladris.config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Locale;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpSession;
+
+import org.geoladris.Geoladris;
+import org.junit.Test;
+
+public class ConfigContextTest {
+  @Test
+  public void roleFromSession() {
+    HttpServletRequest request = mock(HttpServletRequest.class);
+    HttpSession session = mock(HttpSession.class);
+    when(request.getSession()).thenReturn(session);
+    when(session.getAttribute(Geoladris.ATTR_ROLE)).thenReturn("admin");
+
+    ConfigContext context = new ConfigContext(Locale.ENGLISH, request);
+    assertEquals("admin", context.getRole());
+    assertEquals("admin", context.getRole());
+    verify(session, times(1)).getAttribute(Geoladris.ATTR_ROLE);
+  }
+
+  @Test
+  public void noRole() {
+    HttpServletRequest request = mock(HttpServletRequest.class);
+    assertNull(new ConfigContext(Locale.ENGLISH, request).getRole());
+    assertNull(new ConfigContext(Locale.ENGLISH, null).getRole());
+  }
+}
@@ -3,8 +3,13 @@ package org.geoladris.config;
 import static junit.framework.Assert.assertEquals;
 import static junit.framework.Assert.assertFalse;
 import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNull;
 import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.atLeast;
+import static org.mockito.Mockito.atLeastOnce;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
@@ -18,17 +23,23 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Properties;
 import java.util.ResourceBundle;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.servlet.ServletContext;
 import javax.servlet.http.HttpServletRequest;
 
 import org.apache.commons.io.IOUtils;
+import org.geoladris.FileChangeWatcher;
 import org.geoladris.Plugin;
+import org.geoladris.servlet.DetachedRequest;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
@@ -36,6 +47,8 @@ import org.junit.rules.TemporaryFolder;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
 import net.sf.json.JSONObject;
 
@@ -138,6 +151,67 @@ public class ConfigTest {
     assertFalse(config.getProperties() == firstProperties);
   }
 
+  @Test
+  public void watchedFilesDropCacheWithoutTimeout() throws Exception {
+    File portalProperties = new File(folder.getRoot(), "portal.properties");
+    Properties properties = new Properties();
+    properties.put("languages.default", "es");
+    properties.store(new FileOutputStream(portalProperties), "");
+
+    ConfigImpl config = new ConfigImpl(folder.getRoot(), new ArrayList<PluginConfigProvider>(),
+        null, true, -1);
+    FileChangeWatcher watcher = FileChangeWatcher.start();
+    try {
+      config.watch(watcher);
+      assertEquals("es", config.getDefaultLang());
+      String key = config.getSharedCacheKey();
+
+      properties.put("languages.default", "fr");
+      properties.store(new FileOutputStream(portalProperties), "");
+
+      for (int i = 0; i < 50 && config.getDefaultLang().equals("es"); i++) {
+        Thread.sleep(100);
+      }
+      assertEquals("fr", config.getDefaultLang());
+      assertFalse(key.equals(config.getSharedCacheKey()));
+    } finally {
+      watcher.close();
+    }
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void watchedProviderFilesDropProviderCache() throws Exception {
+    FileConfigProvider provider = mock(FileConfigProvider.class);
+    when(provider.canBeCached()).thenReturn(true);
+    File file = new File(folder.getRoot(), "provider.json");
+    when(provider.getFiles(any(Config.class))).thenReturn(new File[] {file});
+
+    ConfigImpl config = new ConfigImpl(folder.getRoot(), Arrays.<PluginConfigProvider>asList(
+        provider), Collections.<Plugin>emptySet(), true, -1);
+    FileChangeWatcher watcher = FileChangeWatcher.start();
+    try {
+      config.watch(watcher);
+      verify(provider).setWatched(true);
+      config.getPluginConfig(Locale.getDefault(), request);
+      config.getPluginConfig(Locale.getDefault(), request);
+
+      FileOutputStream out = new FileOutputStream(file);
+      IOUtils.write("{}", out);
+      out.close();
+      for (int i = 0; i < 50 && config.getProviderCache().size() > 0; i++) {
+        Thread.sleep(100);
+      }
+      verify(provider, atLeastOnce()).filesChanged();
+
+      config.getPluginConfig(Locale.getDefault(), request);
+      verify(provider, atLeast(2)).getPluginConfig(any(Config.class), any(Map.class),
+          any(HttpServletRequest.class));
+    } finally {
+      watcher.close();
+    }
+  }
+
   private Config buildConfigReadOnceAndChangeFolderConfig(boolean useCache, int cacheTimeout,
       String defaultLang, Locale locale, Properties firstProperties) throws IOException {
     File portalProperties = new File(folder.getRoot(), "portal.properties");
@@ -216,6 +290,30 @@ public class ConfigTest {
     assertNotNull(config.getPluginConfig(Locale.getDefault(), request));
   }
 
+  @SuppressWarnings("unchecked")
+  @Test
+  public void failingProviderUsesLastGoodConfiguration() throws Exception {
+    Set<Plugin> plugins = new HashSet<>();
+    plugins.add(new Plugin("1", true));
+
+    PluginConfigProvider provider = mock(PluginConfigProvider.class);
+    when(provider.getCacheKey(request)).thenReturn("admin");
+    when(provider.getPluginConfig(any(Config.class), any(Map.class), any(HttpServletRequest.class)))
+        .thenReturn(Collections.singletonMap("1", JSONObject.fromObject("{module:{a:1}}")))
+        .thenThrow(new IOException("mock"));
+    ConfigImpl config =
+        new ConfigImpl(folder.getRoot(), Arrays.asList(provider), plugins, false, -1);
+
+    config.getPluginConfig(Locale.ROOT, request);
+    Plugin[] c = config.getPluginConfig(Locale.ROOT, request);
+    assertEquals(1, c[0].getConfiguration().getJSONObject("module").get("a"));
+
+    ProviderGuard<Map<String, JSONObject>> guard = config.getProviderGuard(provider);
+    assertEquals(2, guard.getCalls());
+    assertEquals(1, guard.getFailures());
+    assertEquals(1, guard.getFallbacks());
+  }
+
   @SuppressWarnings("unchecked")
   @Test
   public void testMergeDoesNotAffectDefaultPluginConfiguration() throws IOException {
@@ -310,6 +408,462 @@ public class ConfigTest {
     assertEquals(pluginConfig, currentConfiguration.get(plugin.getName()));
   }
 
+  @SuppressWarnings("unchecked")
+  @Test
+  public void independentProvidersRunConcurrently() throws Exception {
+    Set<Plugin> plugins = new HashSet<Plugin>();
+    plugins.add(new Plugin("1", true));
+
+    final CountDownLatch latch = new CountDownLatch(2);
+    PluginConfigProvider p1 = mockIndependentProvider(latch, "{module:{a:1,b:1}}");
+    PluginConfigProvider p2 = mockIndependentProvider(latch, "{module:{a:2}}");
+    Config config = new ConfigImpl(folder.getRoot(), Arrays.asList(p1, p2), plugins, false, -1);
+
+    // Each provider waits for the other one, so both must run at the same time; results are
+    // merged in the order of the providers
+    Plugin[] c = config.getPluginConfig(Locale.ROOT, request);
+    JSONObject pluginConf = c[0].getConfiguration().getJSONObject("module");
+    assertEquals(1, pluginConf.get("b"));
+    assertEquals(2, pluginConf.get("a"));
+  }
+
+  @SuppressWarnings("unchecked")
+  private PluginConfigProvider mockIndependentProvider(final CountDownLatch latch,
+      final String conf) throws IOException {
+    PluginConfigProvider provider = mock(PluginConfigProvider.class);
+    when(provider.ignoresCurrentConfig()).thenReturn(true);
+    when(provider.getPluginConfig(any(Config.class), any(Map.class), any(HttpServletRequest.class)))
+        .thenAnswer(new Answer<Map<String, JSONObject>>() {
+          @Override
+          public Map<String, JSONObject> answer(InvocationOnMock invocation) throws Throwable {
+            latch.countDown();
+            if (!latch.await(5, TimeUnit.SECONDS)) {
+              return null;
+            }
+            return Collections.singletonMap("1", JSONObject.fromObject(conf));
+          }
+        });
+    return provider;
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test
+  public void independentProvidersWaitForDependencies() throws Exception {
+    final AtomicBoolean done = new AtomicBoolean();
+    final AtomicBoolean doneBefore = new AtomicBoolean();
+    PluginConfigProvider p1 = mock(FileConfigProvider.class);
+    when(p1.ignoresCurrentConfig()).thenReturn(true);
+    when(p1.getPluginConfig(any(Config.class), any(Map.class), any(HttpServletRequest.class)))
+        .thenAnswer(new Answer<Map<String, JSONObject>>() {
+          @Override
+          public Map<String, JSONObject> answer(InvocationOnMock invocation) throws Throwable {
+            Thread.sleep(100);
+            done.set(true);
+            return null;
+          }
+        });
+    PluginConfigProvider p2 = mock(PluginConfigProvider.class);
+    when(p2.ignoresCurrentConfig()).thenReturn(true);
+    when(p2.getDependencies()).thenReturn(
+        Collections.<Class<? extends PluginConfigProvider>>singleton(p1.getClass()));
+    when(p2.getPluginConfig(any(Config.class), any(Map.class), any(HttpServletRequest.class)))
+        .thenAnswer(new Answer<Map<String, JSONObject>>() {
+          @Override
+          public Map<String, JSONObject> answer(InvocationOnMock invocation) throws Throwable {
+            doneBefore.set(done.get());
+            return null;
+          }
+        });
+    PluginConfigProvider p3 = mock(PluginConfigProvider.class);
+    when(p3.ignoresCurrentConfig()).thenReturn(true);
+
+    Config config = new ConfigImpl(mock(File.class), Arrays.asList(p1, p2, p3),
+        Collections.<Plugin>emptySet(), false, -1);
+    config.getPluginConfig(Locale.ROOT, request);
+    assertTrue(doneBefore.get());
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test
+  public void concurrentProvidersGetDetachedRequest() throws Exception {
+    final Map<String, Object> calls = new HashMap<>();
+    PluginConfigProvider p1 = mock(PluginConfigProvider.class);
+    when(p1.ignoresCurrentConfig()).thenReturn(true);
+    when(p1.getPluginConfig(any(Config.class), any(Map.class), any(HttpServletRequest.class)))
+        .thenAnswer(new Answer<Map<String, JSONObject>>() {
+          @Override
+          public Map<String, JSONObject> answer(InvocationOnMock invocation) throws Throwable {
+            synchronized (calls) {
+              calls.put("request", invocation.getArguments()[2]);
+              calls.put("thread", Thread.currentThread().getName());
+            }
+            return null;
+          }
+        });
+    PluginConfigProvider p2 = mock(PluginConfigProvider.class);
+    when(p2.ignoresCurrentConfig()).thenReturn(true);
+
+    ConfigImpl config = new ConfigImpl(mock(File.class), Arrays.asList(p1, p2),
+        Collections.<Plugin>emptySet(), false, -1);
+    config.getPluginConfig(Locale.ROOT, request);
+    synchronized (calls) {
+      assertTrue(calls.get("request") instanceof DetachedRequest);
+      assertTrue(calls.get("thread").toString().startsWith("geoladris-config-provider"));
+    }
+    verify(p2).getPluginConfig(any(Config.class), any(Map.class), eq(request));
+
+    // Providers still run once the executor is shut down
+    config.close();
+    config.getPluginConfig(Locale.ROOT, request);
+    verify(p1, times(2)).getPluginConfig(any(Config.class), any(Map.class),
+        any(HttpServletRequest.class));
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test
+  public void hungProviderDoesNotGrowThreads() throws Exception {
+    final CountDownLatch release = new CountDownLatch(1);
+    PluginConfigProvider provider = mock(PluginConfigProvider.class);
+    when(provider.getPluginConfig(any(Config.class), any(Map.class),
+        any(HttpServletRequest.class))).thenAnswer(new Answer<Map<String, JSONObject>>() {
+          @Override
+          public Map<String, JSONObject> answer(InvocationOnMock invocation) {
+            while (release.getCount() > 0) {
+              try {
+                release.await();
+              } catch (InterruptedException e) {
+                // ignored, as a provider blocked on I/O would
+              }
+            }
+            return null;
+          }
+        });
+
+    ConfigImpl config = new ConfigImpl(mock(File.class), Arrays.asList(provider),
+        Collections.<Plugin>emptySet(), false, -1);
+    config.setProviderLimits(20, 0, 1000);
+    try {
+      for (int i = 0; i < ConfigImpl.GUARD_THREADS * 2; i++) {
+        config.getPluginConfig(Locale.ROOT, request);
+      }
+      int threads = 0;
+      for (Thread thread : Thread.getAllStackTraces().keySet()) {
+        if (thread.getName().equals("geoladris-config-provider")) {
+          threads++;
+        }
+      }
+      assertTrue(threads <= ConfigImpl.GUARD_THREADS);
+      assertEquals(ConfigImpl.GUARD_THREADS, config.getProviderGuard(provider).getTimeouts());
+    } finally {
+      release.countDown();
+      config.close();
+    }
+  }
+
+  @Test
+  public void newMethodsDelegateToExistingOnes() {
+    final Plugin[] plugins = new Plugin[0];
+    // Only implements the methods Config had before contexts and cache keys
+    Config config = new Config() {
+      @Override
+      public File getDir() {
+        return null;
+      }
+
+      @Override
+      public Properties getProperties() {
+        return null;
+      }
+
+      @Override
+      public Map<String, String>[] getLanguages() {
+        return null;
+      }
+
+      @Override
+      public ResourceBundle getMessages(Locale locale) {
+        return null;
+      }
+
+      @Override
+      public String localize(String template) {
+        return template + "!";
+      }
+
+      @Override
+      public String[] getPropertyAsArray(String property) {
+        return new String[] {property};
+      }
+
+      @Override
+      public String getDefaultLang() {
+        return null;
+      }
+
+      @Override
+      public Plugin[] getPluginConfig(Locale locale, HttpServletRequest req) {
+        return req == request ? plugins : null;
+      }
+
+      @Override
+      public File getNoJavaPluginRoot() {
+        return null;
+      }
+
+      @Override
+      public void setPlugins(Set<Plugin> plugins) {}
+
+      @Override
+      public void addPluginConfigProvider(PluginConfigProvider provider) {}
+
+      @Override
+      public List<PluginConfigProvider> getPluginConfigProviders() {
+        return null;
+      }
+    };
+
+    ConfigContext context = new ConfigContext(Locale.ROOT, request);
+    assertEquals("a!", config.localize("a", context));
+    assertTrue(config.getPluginConfig(context) == plugins);
+    assertTrue(config.getSharedPluginConfig(request) == plugins);
+    assertNull(config.getCacheKey(context));
+    assertNull(config.getSharedCacheKey());
+    assertEquals(Arrays.asList("a"), config.getPropertyAsList("a"));
+    assertNull(config.getLanguageList());
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test
+  public void providerInputIsNotModified() throws Exception {
+    Plugin plugin = new Plugin("1", true);
+    plugin.setConfiguration(JSONObject.fromObject("{module:{a:1}}"));
+    String base = plugin.getUnqualifiedConfiguration().toString();
+
+    PluginConfigProvider p1 = mock(PluginConfigProvider.class);
+    when(p1.canBeCached()).thenReturn(true);
+    when(p1.getPluginConfig(any(Config.class), any(Map.class), any(HttpServletRequest.class)))
+        .thenReturn(Collections.singletonMap("1", JSONObject.fromObject("{module:{b:1}}")));
+    final List<Map<String, JSONObject>> inputs = new ArrayList<>();
+    PluginConfigProvider p2 = mock(PluginConfigProvider.class);
+    when(p2.canBeCached()).thenReturn(false);
+    when(p2.getPluginConfig(any(Config.class), any(Map.class), any(HttpServletRequest.class)))
+        .thenAnswer(new Answer<Map<String, JSONObject>>() {
+          @Override
+          public Map<String, JSONObject> answer(InvocationOnMock invocation) {
+            Map<String, JSONObject> input = (Map<String, JSONObject>) invocation.getArguments()[1];
+            inputs.add(input);
+            return Collections.singletonMap("1", JSONObject.fromObject("{module:{c:1}}"));
+          }
+        });
+
+    Config config = new ConfigImpl(folder.getRoot(), Arrays.asList(p1, p2),
+        Collections.singleton(plugin), true, -1);
+    config.getPluginConfig(Locale.ROOT, request);
+    String input = inputs.get(0).get("1").toString();
+    config.getPluginConfig(Locale.ROOT, request);
+
+    // The values given to the providers are shared; building the configuration never modifies them
+    assertEquals(2, inputs.size());
+    assertEquals(input, inputs.get(0).get("1").toString());
+    assertEquals(input, inputs.get(1).get("1").toString());
+    assertEquals(base, plugin.getUnqualifiedConfiguration().toString());
+    try {
+      inputs.get(0).put("1", new JSONObject());
+      fail();
+    } catch (UnsupportedOperationException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void cacheKeyChangesWithPlugins() {
+    Config config = new ConfigImpl(folder.getRoot(), new ArrayList<PluginConfigProvider>(),
+        new HashSet<Plugin>(), true, -1);
+    String key = config.getCacheKey(Locale.ROOT, request);
+    assertNotNull(key);
+    assertEquals(key, config.getCacheKey(Locale.ROOT, request));
+    assertFalse(key.equals(config.getCacheKey(Locale.ENGLISH, request)));
+
+    config.setPlugins(new HashSet<Plugin>());
+    assertFalse(key.equals(config.getCacheKey(Locale.ROOT, request)));
+  }
+
+  @Test
+  public void noCacheKeyIfCacheDisabledOrProviderCannotBeCached() {
+    Config config = new ConfigImpl(folder.getRoot(), new ArrayList<PluginConfigProvider>(),
+        new HashSet<Plugin>(), false, -1);
+    assertNull(config.getCacheKey(Locale.ROOT, request));
+
+    PluginConfigProvider provider = mock(PluginConfigProvider.class);
+    when(provider.canBeCached()).thenReturn(false);
+    config = new ConfigImpl(folder.getRoot(), Arrays.asList(provider), new HashSet<Plugin>(), true,
+        -1);
+    assertNull(config.getCacheKey(Locale.ROOT, request));
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void providerConfigurationCachedByKey() throws Exception {
+    HttpServletRequest admin = mock(HttpServletRequest.class);
+    HttpServletRequest user = mock(HttpServletRequest.class);
+    PluginConfigProvider provider = mock(PluginConfigProvider.class);
+    when(provider.canBeCached()).thenReturn(false);
+    when(provider.getCacheKey(admin)).thenReturn("admin");
+    when(provider.getCacheKey(user)).thenReturn("user");
+
+    Config config = new ConfigImpl(folder.getRoot(), Arrays.asList(provider),
+        Collections.<Plugin>emptySet(), true, -1);
+    config.getPluginConfig(Locale.ROOT, admin);
+    config.getPluginConfig(Locale.ROOT, admin);
+    config.getPluginConfig(Locale.ROOT, user);
+    config.getPluginConfig(Locale.ROOT, user);
+
+    verify(provider, times(2)).getPluginConfig(any(Config.class), any(Map.class),
+        any(HttpServletRequest.class));
+
+    String adminKey = config.getCacheKey(Locale.ROOT, admin);
+    String userKey = config.getCacheKey(Locale.ROOT, user);
+    assertNotNull(adminKey);
+    assertNotNull(userKey);
+    assertFalse(adminKey.equals(userKey));
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test
+  public void providersCalledAgainOnlyIfInputChanges() throws Exception {
+    Set<Plugin> plugins = new HashSet<>();
+    plugins.add(new Plugin("1", true));
+
+    PluginConfigProvider p1 = mock(PluginConfigProvider.class);
+    when(p1.canBeCached()).thenReturn(true);
+    when(p1.ignoresCurrentConfig()).thenReturn(true);
+    when(p1.getPluginConfig(any(Config.class), any(Map.class), any(HttpServletRequest.class)))
+        .thenReturn(Collections.singletonMap("1", JSONObject.fromObject("{module:{a:1}}")))
+        .thenReturn(Collections.singletonMap("1", JSONObject.fromObject("{module:{a:2}}")));
+    PluginConfigProvider p2 = mock(PluginConfigProvider.class);
+    when(p2.canBeCached()).thenReturn(true);
+    when(p2.getPluginConfig(any(Config.class), any(Map.class), any(HttpServletRequest.class)))
+        .thenReturn(Collections.singletonMap("1", JSONObject.fromObject("{module:{b:1}}")));
+
+    Config config =
+        new ConfigImpl(folder.getRoot(), Arrays.asList(p1, p2), plugins, true, -1);
+    ArgumentCaptor<ConfigInvalidationListener> captor =
+        ArgumentCaptor.forClass(ConfigInvalidationListener.class);
+    verify(p1).setInvalidationListener(captor.capture());
+
+    Plugin[] c1 = config.getPluginConfig(Locale.ROOT, request);
+    Plugin[] c2 = config.getPluginConfig(Locale.ROOT, request);
+    verify(p2, times(1)).getPluginConfig(any(Config.class), any(Map.class),
+        any(HttpServletRequest.class));
+    // Merges are reused too
+    assertTrue(c1[0].getConfiguration() == c2[0].getConfiguration());
+
+    captor.getValue().invalidate(p1);
+    JSONObject pluginConf =
+        config.getPluginConfig(Locale.ROOT, request)[0].getConfiguration().getJSONObject("module");
+    verify(p2, times(2)).getPluginConfig(any(Config.class), any(Map.class),
+        any(HttpServletRequest.class));
+    assertEquals(2, pluginConf.get("a"));
+    assertEquals(1, pluginConf.get("b"));
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test
+  public void providersNotCalledAgainIfInputContentIsEqual() throws Exception {
+    Set<Plugin> plugins = new HashSet<>();
+    plugins.add(new Plugin("1", true));
+
+    // Not cached, so each request returns a new but equal configuration
+    PluginConfigProvider p1 = mock(PluginConfigProvider.class);
+    when(p1.canBeCached()).thenReturn(false);
+    when(p1.ignoresCurrentConfig()).thenReturn(true);
+    when(p1.getPluginConfig(any(Config.class), any(Map.class), any(HttpServletRequest.class)))
+        .thenReturn(Collections.singletonMap("1", JSONObject.fromObject("{module:{a:1}}")))
+        .thenReturn(Collections.singletonMap("1", JSONObject.fromObject("{module:{a:1}}")));
+    PluginConfigProvider p2 = mock(PluginConfigProvider.class);
+    when(p2.canBeCached()).thenReturn(true);
+    when(p2.getPluginConfig(any(Config.class), any(Map.class), any(HttpServletRequest.class)))
+        .thenReturn(Collections.singletonMap("1", JSONObject.fromObject("{module:{b:1}}")));
+
+    Config config =
+        new ConfigImpl(folder.getRoot(), Arrays.asList(p1, p2), plugins, true, -1);
+    config.getPluginConfig(Locale.ROOT, request);
+    config.getPluginConfig(Locale.ROOT, request);
+    verify(p1, times(2)).getPluginConfig(any(Config.class), any(Map.class),
+        any(HttpServletRequest.class));
+    verify(p2, times(1)).getPluginConfig(any(Config.class), any(Map.class),
+        any(HttpServletRequest.class));
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test
+  public void providerInvalidatesKeys() throws Exception {
+    HttpServletRequest admin = mock(HttpServletRequest.class);
+    HttpServletRequest user = mock(HttpServletRequest.class);
+    PluginConfigProvider provider = mock(PluginConfigProvider.class);
+    when(provider.canBeCached()).thenReturn(false);
+    when(provider.publishesInvalidations()).thenReturn(true);
+    when(provider.getCacheKey(admin)).thenReturn("admin");
+    when(provider.getCacheKey(user)).thenReturn("user");
+
+    Config config = new ConfigImpl(folder.getRoot(), Arrays.asList(provider),
+        Collections.<Plugin>emptySet(), true, 1);
+    ArgumentCaptor<ConfigInvalidationListener> captor =
+        ArgumentCaptor.forClass(ConfigInvalidationListener.class);
+    verify(provider).setInvalidationListener(captor.capture());
+    ConfigInvalidationListener listener = captor.getValue();
+
+    config.getPluginConfig(Locale.ROOT, admin);
+    config.getPluginConfig(Locale.ROOT, user);
+    String adminKey = config.getCacheKey(Locale.ROOT, admin);
+
+    String userKey = config.getCacheKey(Locale.ROOT, user);
+    String sharedKey = config.getSharedCacheKey();
+
+    listener.invalidate(provider, "admin");
+    assertFalse(adminKey.equals(config.getCacheKey(Locale.ROOT, admin)));
+    // Other keys do not change
+    assertEquals(userKey, config.getCacheKey(Locale.ROOT, user));
+    assertEquals(sharedKey, config.getSharedCacheKey());
+    config.getPluginConfig(Locale.ROOT, admin);
+    config.getPluginConfig(Locale.ROOT, user);
+    verify(provider, times(2)).getPluginConfig(any(Config.class), any(Map.class), eq(admin));
+    verify(provider, times(1)).getPluginConfig(any(Config.class), any(Map.class), eq(user));
+
+    // Published configuration does not expire
+    Thread.sleep(1100);
+    config.getPluginConfig(Locale.ROOT, user);
+    verify(provider, times(1)).getPluginConfig(any(Config.class), any(Map.class), eq(user));
+    listener.invalidate(provider);
+    config.getPluginConfig(Locale.ROOT, user);
+    verify(provider, times(2)).getPluginConfig(any(Config.class), any(Map.class), eq(user));
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test
+  public void keyInvalidationDropsCacheableConfiguration() throws Exception {
+    HttpServletRequest request = mock(HttpServletRequest.class);
+    PluginConfigProvider provider = mock(PluginConfigProvider.class);
+    when(provider.canBeCached()).thenReturn(true);
+    when(provider.publishesInvalidations()).thenReturn(true);
+    when(provider.getCacheKey(request)).thenReturn("role");
+
+    Config config = new ConfigImpl(folder.getRoot(), Arrays.asList(provider),
+        Collections.<Plugin>emptySet(), true, 1);
+    ArgumentCaptor<ConfigInvalidationListener> captor =
+        ArgumentCaptor.forClass(ConfigInvalidationListener.class);
+    verify(provider).setInvalidationListener(captor.capture());
+
+    config.getPluginConfig(Locale.ROOT, request);
+    String sharedKey = config.getSharedCacheKey();
+    captor.getValue().invalidate(provider, "role");
+
+    assertFalse(sharedKey.equals(config.getSharedCacheKey()));
+    config.getPluginConfig(Locale.ROOT, request);
+    verify(provider, times(2)).getPluginConfig(any(Config.class), any(Map.class),
+        any(HttpServletRequest.class));
+  }
+
   @Test
   public void missingPropertiesFile() {
     Config config = new ConfigImpl(folder.getRoot(), new ArrayList<PluginConfigProvider>(),
@@ -349,4 +903,76 @@ public class ConfigTest {
     assertEquals(1, bundle.keySet().size());
     assertEquals("1", bundle.getString("a"));
   }
+
+  @Test
+  public void localizesWithRequestLocale() throws Exception {
+    Config config = new ConfigImpl(folder.getRoot(), new ArrayList<PluginConfigProvider>(),
+        new HashSet<Plugin>(), true, -1);
+    File messages = folder.newFolder("messages");
+    IOUtils.write("title=Title\n",
+        new FileOutputStream(new File(messages, "messages_en.properties")));
+    IOUtils.write("title=Titulo\n",
+        new FileOutputStream(new File(messages, "messages_es.properties")));
+
+    ConfigContext en = new ConfigContext(Locale.ENGLISH, request);
+    ConfigContext es = new ConfigContext(new Locale("es"), request);
+    config.getPluginConfig(en);
+    config.getPluginConfig(es);
+    assertEquals("<h1>Title</h1>${missing}",
+        config.localize("<h1>${title}</h1>${missing}", en));
+    assertEquals("<h1>Titulo</h1>", config.localize("<h1>${title}</h1>", es));
+  }
+
+  @Test
+  public void localizesWithDefaultLangWithoutContext() throws Exception {
+    Config config = new ConfigImpl(folder.getRoot(), new ArrayList<PluginConfigProvider>(),
+        new HashSet<Plugin>(), false, -1);
+    File messages = folder.newFolder("messages");
+    IOUtils.write("title=Title\n",
+        new FileOutputStream(new File(messages, "messages_en.properties")));
+    IOUtils.write("title=Titulo\n",
+        new FileOutputStream(new File(messages, "messages_es.properties")));
+    IOUtils.write("languages.default=es\n",
+        new FileOutputStream(new File(folder.getRoot(), "portal.properties")));
+
+    config.getPluginConfig(Locale.ENGLISH, request);
+    assertEquals("Titulo", config.localize("${title}"));
+  }
+
+  @Test
+  @SuppressWarnings("deprecation")
+  public void providersLocalizeWithLocaleOfConfiguration() throws Exception {
+    File messages = folder.newFolder("messages");
+    IOUtils.write("title=Title\n",
+        new FileOutputStream(new File(messages, "messages_en.properties")));
+    IOUtils.write("title=Titulo\n",
+        new FileOutputStream(new File(messages, "messages_es.properties")));
+    IOUtils.write("languages.default=es\n",
+        new FileOutputStream(new File(folder.getRoot(), "portal.properties")));
+
+    Set<Plugin> plugins = new HashSet<>();
+    plugins.add(new Plugin("1", true));
+    PluginConfigProvider provider = new PluginConfigProvider() {
+      @Override
+      public Map<String, JSONObject> getPluginConfig(Config config,
+          Map<String, JSONObject> currentConfig, HttpServletRequest request) {
+        JSONObject conf = new JSONObject();
+        conf.element("module", new JSONObject().element("title", config.localize("${title}")));
+        return Collections.singletonMap("1", conf);
+      }
+
+      @Override
+      public boolean canBeCached() {
+        return false;
+      }
+    };
+
+    Config config = new ConfigImpl(folder.getRoot(),
+        Arrays.<PluginConfigProvider>asList(provider), plugins, false, -1);
+    Plugin[] plugin = config.getPluginConfig(Locale.ENGLISH, request);
+    assertEquals("Title",
+        plugin[0].getConfiguration().getJSONObject("module").getString("title"));
+    // Outside the providers, the default language
+    assertEquals("Titulo", config.localize("${title}"));
+  }
 }
@@ -0,0 +1,250 @@
+package org.geoladris.config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.function.Predicate;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class ExpiringCacheTest {
+  private long now;
+  private ExpiringCache<String, String> cache;
+
+  @Before
+  public void setup() {
+    this.now = 1000;
+    this.cache = newCache(100, 2);
+  }
+
+  private ExpiringCache<String, String> newCache(long ttl, int maxSize) {
+    return new ExpiringCache<String, String>(ttl, maxSize) {
+      @Override
+      long now() {
+        return now;
+      }
+    };
+  }
+
+  @Test
+  public void hitAndMiss() {
+    assertNull(cache.get("a"));
+    cache.put("a", "1");
+    assertEquals("1", cache.get("a"));
+
+    assertEquals(1, cache.getHits());
+    assertEquals(1, cache.getMisses());
+  }
+
+  @Test
+  public void entriesExpireIndependently() {
+    cache.put("a", "1");
+    now += 50;
+    cache.put("b", "2");
+    now += 60;
+
+    assertNull(cache.get("a"));
+    assertEquals("2", cache.get("b"));
+    assertEquals(1, cache.getExpirations());
+  }
+
+  @Test
+  public void noExpirationWithoutTtl() {
+    cache = newCache(0, 2);
+    cache.put("a", "1");
+    now += 1000000;
+    assertEquals("1", cache.get("a"));
+  }
+
+  @Test
+  public void evictsLeastRecentlyUsed() {
+    cache.put("a", "1");
+    now++;
+    cache.put("b", "2");
+    now++;
+    cache.get("a");
+    now++;
+    cache.put("c", "3");
+
+    assertEquals(2, cache.size());
+    assertEquals(1, cache.getEvictions());
+    assertNull(cache.get("b"));
+    assertEquals("1", cache.get("a"));
+    assertEquals("3", cache.get("c"));
+  }
+
+  @Test
+  public void versionChangesWhenEntriesAreDropped() {
+    long version = cache.getVersion();
+    cache.put("a", "1");
+    cache.get("a");
+    assertEquals(version, cache.getVersion());
+
+    // Expired entries are dropped when read
+    now += 100;
+    assertEquals(version, cache.getVersion());
+    assertNull(cache.get("a"));
+    assertTrue(version != cache.getVersion());
+
+    version = cache.getVersion();
+    cache.put("a", "1");
+    cache.remove("a");
+    assertTrue(version != cache.getVersion());
+  }
+
+  @Test
+  public void nextExpiry() {
+    assertEquals(Long.MAX_VALUE, cache.getNextExpiry(all()));
+    cache.put("a", "1");
+    now += 50;
+    cache.put("b", "2");
+    assertEquals(1100, cache.getNextExpiry(all()));
+    assertEquals(1150, cache.getNextExpiry(new Predicate<String>() {
+      @Override
+      public boolean test(String key) {
+        return key.equals("b");
+      }
+    }));
+
+    // Already expired entries are ignored
+    now += 50;
+    assertEquals(1150, cache.getNextExpiry(all()));
+  }
+
+  private static Predicate<String> all() {
+    return new Predicate<String>() {
+      @Override
+      public boolean test(String key) {
+        return true;
+      }
+    };
+  }
+
+  @Test
+  public void servesStaleValueWhileRefreshing() throws IOException {
+    List<Runnable> tasks = new ArrayList<>();
+    cache.setRefreshAhead(queue(tasks), 100);
+    cache.put("a", "1");
+    long version = cache.getVersion();
+
+    now += 150;
+    assertEquals("1", cache.get("a", loader("2")));
+    assertEquals("1", cache.get("a", loader("2")));
+    assertEquals(1, tasks.size());
+    assertEquals(2, cache.getStaleHits());
+
+    tasks.get(0).run();
+    assertEquals("2", cache.get("a", loader("3")));
+    assertEquals(1, cache.getRefreshes());
+    assertTrue(version != cache.getVersion());
+  }
+
+  @Test
+  public void loadsAfterMaxStale() throws IOException {
+    List<Runnable> tasks = new ArrayList<>();
+    cache.setRefreshAhead(queue(tasks), 100);
+    cache.put("a", "1");
+
+    now += 200;
+    assertEquals("2", cache.get("a", loader("2")));
+    assertTrue(tasks.isEmpty());
+    assertEquals(1, cache.getExpirations());
+  }
+
+  @Test
+  public void refreshesWithRefresher() throws IOException {
+    List<Runnable> tasks = new ArrayList<>();
+    cache.setRefreshAhead(queue(tasks), 100);
+    cache.put("a", "1");
+
+    now += 150;
+    assertEquals("1", cache.get("a", loader("2"), loader("3")));
+    tasks.get(0).run();
+    assertEquals("3", cache.get("a", loader("4")));
+  }
+
+  @Test
+  public void loadsInCallerWithoutRefresher() throws IOException {
+    List<Runnable> tasks = new ArrayList<>();
+    cache.setRefreshAhead(queue(tasks), 100);
+    cache.put("a", "1");
+
+    now += 150;
+    assertEquals("2", cache.get("a", loader("2"), null));
+    assertTrue(tasks.isEmpty());
+    assertEquals(0, cache.getStaleHits());
+  }
+
+  @Test
+  public void keepsStaleValueIfRefreshFails() throws IOException {
+    List<Runnable> tasks = new ArrayList<>();
+    cache.setRefreshAhead(queue(tasks), 100);
+    cache.put("a", "1");
+
+    now += 150;
+    cache.get("a", new ExpiringCache.Loader<String>() {
+      @Override
+      public String load() throws IOException {
+        throw new IOException();
+      }
+    });
+    tasks.get(0).run();
+
+    assertEquals("1", cache.get("a", loader("2")));
+    assertEquals(2, tasks.size());
+  }
+
+  @Test
+  public void doesNotCacheValueLoadedDuringInvalidation() throws IOException {
+    assertEquals("1", cache.get("a", new ExpiringCache.Loader<String>() {
+      @Override
+      public String load() {
+        // e.g. a file change while the configuration is being built
+        cache.clear();
+        return "1";
+      }
+    }));
+    assertNull(cache.get("a"));
+
+    assertEquals("2", cache.get("a", new ExpiringCache.Loader<String>() {
+      @Override
+      public String load() {
+        cache.removeAll(new Predicate<String>() {
+          @Override
+          public boolean test(String key) {
+            return key.equals("a");
+          }
+        });
+        return "2";
+      }
+    }));
+    assertNull(cache.get("a"));
+
+    assertEquals("3", cache.get("a", loader("3")));
+    assertEquals("3", cache.get("a"));
+  }
+
+  private ExpiringCache.Loader<String> loader(final String value) {
+    return new ExpiringCache.Loader<String>() {
+      @Override
+      public String load() {
+        return value;
+      }
+    };
+  }
+
+  private Executor queue(final List<Runnable> tasks) {
+    return new Executor() {
+      @Override
+      public void execute(Runnable command) {
+        tasks.add(command);
+      }
+    };
+  }
+}
@@ -0,0 +1,82 @@
+package org.geoladris.config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Predicate;
+import java.util.function.ToLongFunction;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class KeyVersionsTest {
+  private long now;
+  private Map<String, Long> expiries;
+  private KeyVersions<String> versions;
+
+  @Before
+  public void setup() {
+    this.now = 1000;
+    this.expiries = new HashMap<>();
+    this.versions = newVersions(10);
+  }
+
+  private KeyVersions<String> newVersions(int maxKeys) {
+    return new KeyVersions<String>(maxKeys, new ToLongFunction<String>() {
+      @Override
+      public long applyAsLong(String key) {
+        Long expiry = expiries.get(key);
+        return expiry != null ? expiry : Long.MAX_VALUE;
+      }
+    }) {
+      @Override
+      long now() {
+        return now;
+      }
+    };
+  }
+
+  @Test
+  public void changesOnlyTheChangedKey() {
+    long a = versions.get("a");
+    long b = versions.get("b");
+    assertEquals(a, versions.get("a"));
+
+    versions.changed("a");
+    assertTrue(a != versions.get("a"));
+    assertEquals(b, versions.get("b"));
+  }
+
+  @Test
+  public void changesWhenValuesExpire() {
+    expiries.put("a", 1100L);
+    long a = versions.get("a");
+    long b = versions.get("b");
+
+    now += 100;
+    expiries.put("a", 1200L);
+    long next = versions.get("a");
+    assertTrue(a != next);
+    assertEquals(next, versions.get("a"));
+    assertEquals(b, versions.get("b"));
+  }
+
+  @Test
+  public void neverReusesDroppedVersions() {
+    versions = newVersions(1);
+    long a = versions.get("a");
+    versions.get("b");
+    assertTrue(a != versions.get("a"));
+
+    long b = versions.get("b");
+    versions.changedAll(new Predicate<String>() {
+      @Override
+      public boolean test(String key) {
+        return key.equals("b");
+      }
+    });
+    assertTrue(b != versions.get("b"));
+  }
+}
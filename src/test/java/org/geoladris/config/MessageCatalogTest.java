@@ -0,0 +1,100 @@
+package org.geoladris.config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.ResourceBundle;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class MessageCatalogTest {
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private File dir;
+  private MessageCatalog catalog;
+  private Locale defaultLocale;
+
+  @Before
+  public void setup() throws IOException {
+    this.defaultLocale = Locale.getDefault();
+    Locale.setDefault(Locale.ENGLISH);
+    this.dir = folder.newFolder("messages");
+    this.catalog = new MessageCatalog(this.dir);
+  }
+
+  @After
+  public void teardown() {
+    Locale.setDefault(this.defaultLocale);
+  }
+
+  @Test
+  public void resolvesFromMostSpecificToBase() throws IOException {
+    write("messages.properties", "a=base\nb=base\nc=base");
+    write("messages_es.properties", "a=es\nb=es");
+    write("messages_es_AR.properties", "a=es_AR");
+
+    ResourceBundle bundle = this.catalog.getBundle(new Locale("es", "AR"));
+    assertEquals("es_AR", bundle.getString("a"));
+    assertEquals("es", bundle.getString("b"));
+    assertEquals("base", bundle.getString("c"));
+    assertEquals(3, bundle.keySet().size());
+  }
+
+  @Test
+  public void fallsBackToDefaultLocale() throws IOException {
+    write("messages.properties", "a=base\nb=base");
+    write("messages_en.properties", "a=en");
+
+    ResourceBundle bundle = this.catalog.getBundle(new Locale("fr"));
+    assertEquals("en", bundle.getString("a"));
+    assertEquals("base", bundle.getString("b"));
+  }
+
+  @Test
+  public void noDefaultLocaleFallbackIfLocaleExists() throws IOException {
+    write("messages_en.properties", "a=en");
+    write("messages_fr.properties", "b=fr");
+
+    ResourceBundle bundle = this.catalog.getBundle(new Locale("fr"));
+    assertEquals("fr", bundle.getString("b"));
+    assertFalse(bundle.containsKey("a"));
+  }
+
+  @Test
+  public void emptyBundleIfNoMessages() throws IOException {
+    assertTrue(this.catalog.getBundle(Locale.ENGLISH).keySet().isEmpty());
+    assertTrue(new MessageCatalog(new File(this.dir, "missing")).getBundle(Locale.ENGLISH)
+        .keySet().isEmpty());
+  }
+
+  @Test
+  public void readsModifiedFiles() throws IOException {
+    File file = write("messages_en.properties", "a=old");
+    file.setLastModified(1000000L);
+    assertEquals("old", this.catalog.getBundle(Locale.ENGLISH).getString("a"));
+
+    write("messages_en.properties", "a=new");
+    file.setLastModified(2000000L);
+    assertEquals("new", this.catalog.getBundle(Locale.ENGLISH).getString("a"));
+
+    file.delete();
+    assertFalse(this.catalog.getBundle(Locale.ENGLISH).containsKey("a"));
+  }
+
+  private File write(String name, String content) throws IOException {
+    File file = new File(this.dir, name);
+    FileUtils.write(file, content, StandardCharsets.UTF_8);
+    return file;
+  }
+}
@@ -0,0 +1,51 @@
+package org.geoladris.config;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class MessageTemplateTest {
+  private Map<String, String> messages;
+
+  @Before
+  public void setup() {
+    this.messages = new HashMap<>();
+    this.messages.put("title", "Geoladris");
+    this.messages.put("layers.name_1", "Layer");
+    this.messages.put("price", "$1");
+  }
+
+  @Test
+  public void replacesMessages() {
+    assertEquals("<h1>Geoladris</h1><p>Layer</p>",
+        render("<h1>${title}</h1><p>${layers.name_1}</p>"));
+  }
+
+  @Test
+  public void noReferences() {
+    assertEquals("<h1>title</h1>", render("<h1>title</h1>"));
+  }
+
+  @Test
+  public void keepsMissingMessages() {
+    assertEquals("Geoladris ${missing}", render("${title} ${missing}"));
+  }
+
+  @Test
+  public void ignoresInvalidReferences() {
+    assertEquals("${ti tle} ${title $Geoladris ${}", render("${ti tle} ${title $${title} ${}"));
+  }
+
+  @Test
+  public void messagesAreLiteral() {
+    assertEquals("costs $1", render("costs ${price}"));
+  }
+
+  private String render(String template) {
+    return MessageTemplate.compile(template).render(this.messages);
+  }
+}
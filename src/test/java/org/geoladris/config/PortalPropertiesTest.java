@@ -0,0 +1,110 @@
+package org.geoladris.config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.junit.Test;
+
+public class PortalPropertiesTest {
+  @Test
+  public void parsesLanguages() {
+    Properties properties = new Properties();
+    properties.put("languages", "{\"es\": \"Espa\u00f1ol\", \"en\": \"English\"}");
+    PortalProperties portal = new PortalProperties(properties);
+
+    List<Map<String, String>> languages = portal.getLanguages();
+    assertEquals(2, languages.size());
+    assertEquals("es", languages.get(0).get("code"));
+    assertEquals("Espa\u00f1ol", languages.get(0).get("name"));
+    assertEquals("en", languages.get(1).get("code"));
+    assertSame(languages, portal.getLanguages());
+
+    try {
+      languages.set(0, null);
+      fail();
+    } catch (UnsupportedOperationException e) {
+      // expected
+    }
+    try {
+      languages.get(0).put("code", "fr");
+      fail();
+    } catch (UnsupportedOperationException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void defaultLang() {
+    Properties properties = new Properties();
+    assertEquals("en", new PortalProperties(properties).getDefaultLang());
+
+    properties.put("languages", "{\"fr\": \"Fran\u00e7ais\"}");
+    assertEquals("fr", new PortalProperties(properties).getDefaultLang());
+
+    properties.put("languages.default", "es");
+    assertEquals("es", new PortalProperties(properties).getDefaultLang());
+  }
+
+  @Test
+  public void invalidLanguages() {
+    Properties properties = new Properties();
+    properties.put("languages", "es");
+    PortalProperties portal = new PortalProperties(properties);
+    assertNull(portal.getLanguages());
+    assertEquals("en", portal.getDefaultLang());
+  }
+
+  @Test
+  public void lists() {
+    Properties properties = new Properties();
+    properties.put("map.centerLonLat", "1,2");
+    PortalProperties portal = new PortalProperties(properties);
+
+    assertEquals(Arrays.asList("1", "2"), portal.getList("map.centerLonLat"));
+    assertSame(portal.getList("map.centerLonLat"), portal.getList("map.centerLonLat"));
+    assertNull(portal.getList("client.modules"));
+    try {
+      portal.getList("map.centerLonLat").set(0, "3");
+      fail();
+    } catch (UnsupportedOperationException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void propertiesAreReadOnly() {
+    Properties properties = new Properties();
+    properties.put("title", "a");
+    PortalProperties portal = new PortalProperties(properties);
+
+    properties.put("title", "b");
+    assertEquals("a", portal.getProperties().getProperty("title"));
+    assertSame(portal.getProperties(), portal.getProperties());
+    try {
+      portal.getProperties().put("title", "c");
+      fail();
+    } catch (UnsupportedOperationException e) {
+      // expected
+    }
+    try {
+      portal.getProperties().setProperty("title", "c");
+      fail();
+    } catch (UnsupportedOperationException e) {
+      // expected
+    }
+    try {
+      portal.getProperties().keySet().clear();
+      fail();
+    } catch (UnsupportedOperationException e) {
+      // expected
+    }
+    assertEquals("a", portal.getProperties().getProperty("title"));
+  }
+}
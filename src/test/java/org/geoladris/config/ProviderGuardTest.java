@@ -0,0 +1,211 @@
+package org.geoladris.config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ProviderGuardTest {
+  private ExecutorService executor;
+  private long time;
+  private AtomicInteger loads;
+
+  @Before
+  public void setup() {
+    this.executor = Executors.newCachedThreadPool();
+    this.loads = new AtomicInteger();
+  }
+
+  @After
+  public void teardown() {
+    this.executor.shutdownNow();
+  }
+
+  @Test
+  public void opensAfterConsecutiveFailures() throws Exception {
+    ProviderGuard<String> guard = guard(0, 2, 1000);
+
+    callFailing(guard);
+    assertEquals(ProviderGuard.State.CLOSED, guard.getState());
+    callFailing(guard);
+    assertEquals(ProviderGuard.State.OPEN, guard.getState());
+
+    // Not called while open
+    callFailing(guard);
+    assertEquals(2, this.loads.get());
+    assertEquals(2, guard.getFailures());
+    assertEquals(1, guard.getRejections());
+  }
+
+  @Test
+  public void rejectsWithCircuitOpenException() throws Exception {
+    ProviderGuard<String> guard = guard(0, 1, 1000);
+    callFailing(guard);
+
+    try {
+      guard.call("k", value("a"));
+      fail();
+    } catch (ProviderGuard.CircuitOpenException e) {
+      // expected
+    }
+    assertEquals(1, this.loads.get());
+  }
+
+  @Test
+  public void successResetsFailures() throws Exception {
+    ProviderGuard<String> guard = guard(0, 2, 1000);
+
+    callFailing(guard);
+    assertEquals("a", guard.call("k", value("a")));
+    callFailing(guard);
+    assertEquals(ProviderGuard.State.CLOSED, guard.getState());
+  }
+
+  @Test
+  public void triesOnceAfterCoolDown() throws Exception {
+    ProviderGuard<String> guard = guard(0, 1, 1000);
+    callFailing(guard);
+    assertEquals(ProviderGuard.State.OPEN, guard.getState());
+
+    this.time += 1000;
+    callFailing(guard);
+    assertEquals(ProviderGuard.State.OPEN, guard.getState());
+    assertEquals(2, this.loads.get());
+
+    this.time += 1000;
+    assertEquals("a", guard.call("k", value("a")));
+    assertEquals(ProviderGuard.State.CLOSED, guard.getState());
+  }
+
+  @Test
+  public void neverOpensWithoutMaxFailures() throws Exception {
+    ProviderGuard<String> guard = guard(0, 0, 1000);
+    for (int i = 0; i < 10; i++) {
+      callFailing(guard);
+    }
+    assertEquals(ProviderGuard.State.CLOSED, guard.getState());
+    assertEquals(10, this.loads.get());
+  }
+
+  @Test
+  public void exceedsBudget() throws Exception {
+    ProviderGuard<String> guard = guard(50, 0, 1000);
+    try {
+      guard.call("k", new ExpiringCache.Loader<String>() {
+        @Override
+        public String load() throws IOException {
+          try {
+            Thread.sleep(5000);
+          } catch (InterruptedException e) {
+            throw new IOException(e);
+          }
+          return "a";
+        }
+      });
+      fail();
+    } catch (IOException e) {
+      // expected
+    }
+    assertEquals(1, guard.getTimeouts());
+    assertEquals(1, guard.getFailures());
+    assertTrue(guard.getMaxCallTime() >= 50);
+  }
+
+  @Test
+  public void failsIfNoThreadIsAvailable() throws Exception {
+    this.executor.shutdownNow();
+    this.executor = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS,
+        new SynchronousQueue<Runnable>());
+    final CountDownLatch release = new CountDownLatch(1);
+    ProviderGuard<String> guard = guard(50, 0, 1000);
+    ExpiringCache.Loader<String> hung = new ExpiringCache.Loader<String>() {
+      @Override
+      public String load() {
+        // Ignores the interruption, as a provider blocked on I/O would
+        while (release.getCount() > 0) {
+          try {
+            release.await();
+          } catch (InterruptedException e) {
+            // keep waiting
+          }
+        }
+        return "a";
+      }
+    };
+
+    try {
+      for (int i = 0; i < 2; i++) {
+        try {
+          guard.call("k", hung);
+          fail();
+        } catch (IOException e) {
+          // expected
+        }
+      }
+      assertEquals(1, guard.getTimeouts());
+      assertEquals(2, guard.getFailures());
+      assertEquals(1, ((ThreadPoolExecutor) this.executor).getLargestPoolSize());
+    } finally {
+      release.countDown();
+    }
+  }
+
+  @Test
+  public void keepsLastGoodByKey() throws Exception {
+    ProviderGuard<String> guard = guard(0, 0, 1000);
+    guard.call("k1", value("a"));
+    guard.call(null, value("b"));
+
+    assertEquals("a", guard.getLastGood("k1"));
+    assertNull(guard.getLastGood("k2"));
+    assertNull(guard.getLastGood(null));
+    assertEquals(1, guard.getFallbacks());
+  }
+
+  private ProviderGuard<String> guard(long budget, int maxFailures, long coolDown) {
+    return new ProviderGuard<String>("test", budget, maxFailures, coolDown, this.executor, 10) {
+      @Override
+      long now() {
+        return time;
+      }
+    };
+  }
+
+  private ExpiringCache.Loader<String> value(final String value) {
+    return new ExpiringCache.Loader<String>() {
+      @Override
+      public String load() {
+        loads.incrementAndGet();
+        return value;
+      }
+    };
+  }
+
+  private void callFailing(ProviderGuard<String> guard) {
+    try {
+      guard.call("k", new ExpiringCache.Loader<String>() {
+        @Override
+        public String load() throws IOException {
+          loads.incrementAndGet();
+          throw new IOException("mock");
+        }
+      });
+      fail();
+    } catch (IOException e) {
+      // expected
+    }
+  }
+}
@@ -0,0 +1,152 @@
+package org.geoladris.config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SingleFlightTest {
+  private SingleFlight<String, Object> flight;
+  private ExecutorService executor;
+
+  @Before
+  public void setup() {
+    this.flight = new SingleFlight<>();
+    this.executor = Executors.newFixedThreadPool(4);
+  }
+
+  @After
+  public void teardown() {
+    this.executor.shutdownNow();
+  }
+
+  @Test
+  public void concurrentCallsShareLoad() throws Exception {
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    final AtomicInteger nLoads = new AtomicInteger();
+    final ExpiringCache.Loader<Object> loader = new ExpiringCache.Loader<Object>() {
+      @Override
+      public Object load() throws IOException {
+        nLoads.incrementAndGet();
+        started.countDown();
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          throw new IOException(e);
+        }
+        return new Object();
+      }
+    };
+
+    Future<Object> first = this.executor.submit(new Load("a", loader));
+    started.await(5, TimeUnit.SECONDS);
+    Future<Object> second = this.executor.submit(new Load("a", loader));
+    while (this.flight.getCoalesced() == 0) {
+      Thread.sleep(10);
+    }
+    release.countDown();
+
+    assertSame(first.get(5, TimeUnit.SECONDS), second.get(5, TimeUnit.SECONDS));
+    assertEquals(1, nLoads.get());
+    assertEquals(1, this.flight.getLoads());
+    assertEquals(1, this.flight.getCoalesced());
+    assertEquals(0, this.flight.getInFlight());
+  }
+
+  @Test
+  public void forgottenLoadsAreNotShared() throws Exception {
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    Future<Object> first = this.executor.submit(new Load("a", new ExpiringCache.Loader<Object>() {
+      @Override
+      public Object load() throws IOException {
+        started.countDown();
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          throw new IOException(e);
+        }
+        return "old";
+      }
+    }));
+    started.await(5, TimeUnit.SECONDS);
+
+    this.flight.forgetAll(new Predicate<String>() {
+      @Override
+      public boolean test(String key) {
+        return key.equals("a");
+      }
+    });
+    assertEquals(0, this.flight.getInFlight());
+    Object second = this.flight.load("a", new ExpiringCache.Loader<Object>() {
+      @Override
+      public Object load() {
+        return "new";
+      }
+    });
+    release.countDown();
+
+    assertEquals("new", second);
+    assertEquals("old", first.get(5, TimeUnit.SECONDS));
+    assertEquals(0, this.flight.getCoalesced());
+  }
+
+  @Test
+  public void sequentialCallsLoadAgain() throws Exception {
+    ExpiringCache.Loader<Object> loader = new ExpiringCache.Loader<Object>() {
+      @Override
+      public Object load() {
+        return new Object();
+      }
+    };
+    this.flight.load("a", loader);
+    this.flight.load("a", loader);
+    assertEquals(2, this.flight.getLoads());
+    assertEquals(0, this.flight.getCoalesced());
+  }
+
+  @Test
+  public void propagatesException() {
+    try {
+      this.flight.load("a", new ExpiringCache.Loader<Object>() {
+        @Override
+        public Object load() throws IOException {
+          throw new IOException("fail");
+        }
+      });
+      fail();
+    } catch (IOException e) {
+      assertEquals("fail", e.getMessage());
+    }
+    assertEquals(0, this.flight.getInFlight());
+  }
+
+  private class Load implements Callable<Object> {
+    private final String key;
+    private final ExpiringCache.Loader<Object> loader;
+
+    private Load(String key, ExpiringCache.Loader<Object> loader) {
+      this.key = key;
+      this.loader = loader;
+    }
+
+    @Override
+    public Object call() throws IOException {
+      return flight.load(this.key, this.loader);
+    }
+  }
+}
@@ -88,6 +88,51 @@ public class RoleConfigProviderTest {
     tmp.delete();
   }
 
+  @Test
+  public void keepsRolesWhileWatched() throws Exception {
+    File file = new File(roleDir, "role1.json");
+    FileUtils.write(file, "{ 'p1' : { mymodule : {'a' : true }}}");
+
+    provider.setWatched(true);
+    HttpServletRequest request = mockRequest("role1");
+    provider.getPluginConfig(config, new HashMap<String, JSONObject>(), request);
+
+    FileUtils.write(file, "{ 'p1' : { mymodule : {'a' : false }}}");
+    Map<String, JSONObject> pluginConfs =
+        provider.getPluginConfig(config, new HashMap<String, JSONObject>(), request);
+    assertTrue(pluginConfs.get("p1").getJSONObject("mymodule").getBoolean("a"));
+
+    provider.filesChanged();
+    pluginConfs = provider.getPluginConfig(config, new HashMap<String, JSONObject>(), request);
+    assertFalse(pluginConfs.get("p1").getJSONObject("mymodule").getBoolean("a"));
+  }
+
+  @Test
+  public void readsRolesOnEveryCallIfNotWatched() throws Exception {
+    File file = new File(roleDir, "role1.json");
+    FileUtils.write(file, "{ 'p1' : { mymodule : {'a' : true }}}");
+
+    HttpServletRequest request = mockRequest("role1");
+    provider.getPluginConfig(config, new HashMap<String, JSONObject>(), request);
+
+    FileUtils.write(file, "{ 'p1' : { mymodule : {'a' : false }}}");
+    Map<String, JSONObject> pluginConfs =
+        provider.getPluginConfig(config, new HashMap<String, JSONObject>(), request);
+    assertFalse(pluginConfs.get("p1").getJSONObject("mymodule").getBoolean("a"));
+  }
+
+  @Test
+  public void cachedByRole() {
+    String role1 = provider.getCacheKey(mockRequest("role1"));
+    String noRole = provider.getCacheKey(mockRequest(null));
+    assertEquals(role1, provider.getCacheKey(mockRequest("role1")));
+    assertFalse(role1.equals(provider.getCacheKey(mockRequest("role2"))));
+    assertFalse(role1.equals(noRole));
+    // Distinct from the key of the configuration shared by all requests
+    assertFalse(noRole.isEmpty());
+    assertFalse(provider.getCacheKey(mockRequest("")).isEmpty());
+  }
+
   @Test
   public void cannnotBeCached() {
     assertFalse(this.provider.canBeCached());
@@ -5,7 +5,9 @@ import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import java.io.File;
@@ -13,6 +15,9 @@ import java.io.IOException;
 import java.util.HashSet;
 import java.util.Set;
 
+import javax.servlet.Servlet;
+import javax.servlet.ServletRegistration;
+
 import org.geoladris.Environment;
 import org.geoladris.Geoladris;
 import org.geoladris.Plugin;
@@ -23,6 +28,7 @@ import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
+import org.mockito.Matchers;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
 
@@ -100,6 +106,33 @@ public class AppContextListenerTest {
     assertEquals(defaultConfig, config.getDir());
   }
 
+  @Test
+  public void indexServletNotRegisteredByDefault() throws Exception {
+    init("/");
+    verify(context.servletContext, never()).addServlet(anyString(),
+        Matchers.<Class<? extends Servlet>>any());
+  }
+
+  @Test
+  public void indexServletRegisteredIfRendering() throws Exception {
+    when(context.servletContext.getInitParameter(Environment.RENDER_INDEX)).thenReturn("true");
+    ServletRegistration.Dynamic registration = mock(ServletRegistration.Dynamic.class);
+    when(context.servletContext.addServlet("index-servlet", IndexServlet.class))
+        .thenReturn(registration);
+
+    init("/");
+    verify(registration).setAsyncSupported(true);
+    verify(registration).addMapping("", "/index.html");
+  }
+
+  @Test
+  public void closesConfigOnDestroy() throws Exception {
+    Config config = mock(Config.class);
+    context.servletContext.setAttribute(Geoladris.ATTR_CONFIG, config);
+    listener.contextDestroyed(context.event);
+    verify(config).close();
+  }
+
   private Config init(String path) throws Exception {
     when(context.request.getRequestURI()).thenReturn("/" + path);
     listener.contextInitialized(context.event);
@@ -0,0 +1,80 @@
+package org.geoladris.servlet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.WriteListener;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.Test;
+
+public class BufferedResponseTest {
+  @Test
+  public void replaysHeadersAndCookies() throws IOException {
+    BufferedResponse buffer = new BufferedResponse();
+    buffer.setIntHeader("Max-Age", 1);
+    buffer.setIntHeader("Max-Age", 2);
+    buffer.addDateHeader("Expires", 0);
+    Cookie cookie = new Cookie("a", "1");
+    buffer.addCookie(cookie);
+    buffer.setStatus(HttpServletResponse.SC_NO_CONTENT);
+
+    assertTrue(buffer.containsHeader("max-age"));
+    assertEquals("Thu, 01 Jan 1970 00:00:00 GMT", buffer.getHeader("Expires"));
+
+    HttpServletResponse response = mock(HttpServletResponse.class);
+    AsyncContext async = mock(AsyncContext.class);
+    when(async.getResponse()).thenReturn(response);
+    buffer.replay(async);
+
+    verify(response).addHeader("Max-Age", "2");
+    verify(response, never()).addHeader("Max-Age", "1");
+    verify(response).addHeader("Expires", "Thu, 01 Jan 1970 00:00:00 GMT");
+    verify(response).addCookie(cookie);
+    verify(response).setStatus(HttpServletResponse.SC_NO_CONTENT);
+    verify(async).complete();
+  }
+
+  @Test
+  public void replaysErrorWithMessage() throws IOException {
+    BufferedResponse buffer = new BufferedResponse();
+    buffer.getWriter().write("discarded");
+    buffer.sendError(HttpServletResponse.SC_FORBIDDEN, "No access");
+
+    HttpServletResponse response = mock(HttpServletResponse.class);
+    AsyncContext async = mock(AsyncContext.class);
+    when(async.getResponse()).thenReturn(response);
+    buffer.replay(async);
+
+    verify(response).sendError(HttpServletResponse.SC_FORBIDDEN, "No access");
+    verify(response, never()).setStatus(anyInt());
+    verify(async).complete();
+  }
+
+  @Test
+  public void notifiesWriteListener() throws IOException {
+    WriteListener listener = mock(WriteListener.class);
+    new BufferedResponse().getOutputStream().setWriteListener(listener);
+    verify(listener).onWritePossible();
+  }
+
+  @Test
+  public void failsOnUncoveredMethods() {
+    try {
+      new BufferedResponse().encodeURL("a");
+      fail();
+    } catch (IllegalStateException e) {
+      // expected
+    }
+  }
+}
@@ -5,12 +5,20 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.atLeastOnce;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
@@ -18,17 +26,28 @@ import java.util.Map;
 import java.util.Properties;
 import java.util.PropertyResourceBundle;
 import java.util.ResourceBundle;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.GZIPInputStream;
 
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.apache.commons.io.IOUtils;
+import org.geoladris.Environment;
 import org.geoladris.Geoladris;
 import org.geoladris.Plugin;
 import org.geoladris.TestingServletContext;
 import org.geoladris.config.Config;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
 import net.sf.json.JSONArray;
 import net.sf.json.JSONObject;
@@ -70,9 +89,10 @@ public class ConfigServletTest {
     spanish.put("code", "es");
     spanish.put("name", "Español");
     languages.add(spanish);
-    when(config.getLanguages()).thenReturn(languages.toArray(new Map[0]));
-    when(config.getPropertyAsArray(Config.PROPERTY_MAP_CENTER)).thenReturn(new String[] {"0", "0"});
-    when(config.getPropertyAsArray(Config.PROPERTY_CLIENT_MODULES)).thenReturn(new String[0]);
+    when(config.getLanguageList()).thenReturn(languages);
+    when(config.getPropertyAsList(Config.PROPERTY_MAP_CENTER)).thenReturn(Arrays.asList("0", "0"));
+    when(config.getPropertyAsList(Config.PROPERTY_CLIENT_MODULES))
+        .thenReturn(Collections.<String>emptyList());
 
     when(config.getPluginConfig(any(Locale.class), eq(request)))
         .thenReturn(new Plugin[0]);
@@ -147,6 +167,381 @@ public class ConfigServletTest {
     assertEquals(9, module3.get(2));
   }
 
+  @Test
+  public void lastPluginWinsForRepeatedModuleConfiguration() throws Exception {
+    Plugin plugin1 = new Plugin("plugin1",
+        JSONObject.fromObject("{installInRoot : true, default-conf:{m : {a : 1}, n : 1}}"));
+    Plugin plugin2 = new Plugin("plugin2",
+        JSONObject.fromObject("{installInRoot : true, default-conf:{m : {b : 2}}}"));
+
+    mockEmptyConfig();
+    request.getSession().setAttribute(Geoladris.ATTR_LOCALE, Locale.ROOT);
+    when(config.getPluginConfig(Locale.ROOT, request))
+        .thenReturn(new Plugin[] {plugin1, plugin2});
+
+    servlet.doGet(request, response);
+
+    String content = context.getResponse();
+    JSONObject json = JSONObject.fromObject(content.substring(content.indexOf('{')));
+    JSONObject cfg = json.getJSONObject("config");
+    assertEquals(JSONObject.fromObject("{b : 2}"), cfg.getJSONObject("m"));
+    assertEquals(1, cfg.getInt("n"));
+  }
+
+  @Test
+  public void cachesSnapshotsAndAnswersNotModified() throws Exception {
+    Plugin plugin1 = new Plugin("plugin1", JSONObject.fromObject("{default-conf:{module1 : {}}}"));
+    mockEmptyConfig();
+    request.getSession().setAttribute(Geoladris.ATTR_LOCALE, Locale.ROOT);
+    when(config.getPluginConfig(Locale.ROOT, request)).thenReturn(new Plugin[] {plugin1});
+    when(config.getCacheKey(Locale.ROOT, request)).thenReturn("key");
+
+    servlet.doGet(request, response);
+    String content = context.getResponse();
+    String etag = "\"" + ConfigSnapshot.hash(content.getBytes("UTF-8")) + "\"";
+    verify(response).setHeader("ETag", etag);
+    verify(response, never()).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+
+    when(request.getHeader("If-None-Match")).thenReturn(etag);
+    servlet.doGet(request, response);
+    verify(response).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+    verify(config, times(1)).getPluginConfig(Locale.ROOT, request);
+  }
+
+  @Test
+  public void sendsPrecompressedSnapshot() throws Exception {
+    mockEmptyConfig();
+    request.getSession().setAttribute(Geoladris.ATTR_LOCALE, Locale.ROOT);
+    when(config.getPluginConfig(Locale.ROOT, request)).thenReturn(new Plugin[0]);
+    when(config.getCacheKey(Locale.ROOT, request)).thenReturn("key");
+    when(request.getHeader("Accept-Encoding")).thenReturn("deflate;q=0.5, gzip");
+
+    servlet.doGet(request, response);
+
+    verify(response).setHeader("Content-Encoding", "gzip");
+    verify(response).setHeader("Vary", "Accept-Encoding, A-IM");
+    InputStream in = new GZIPInputStream(new ByteArrayInputStream(context.getResponseBytes()));
+    assertTrue(IOUtils.toString(in, "UTF-8").contains("var require = "));
+  }
+
+  @Test
+  public void entityTagDependsOnEncoding() throws Exception {
+    mockEmptyConfig();
+    request.getSession().setAttribute(Geoladris.ATTR_LOCALE, Locale.ROOT);
+    when(config.getPluginConfig(Locale.ROOT, request)).thenReturn(new Plugin[0]);
+    when(config.getCacheKey(Locale.ROOT, request)).thenReturn("key");
+
+    servlet.doGet(request, response);
+    String hash = ConfigSnapshot.hash(context.getResponseBytes());
+    verify(response).setHeader("ETag", "\"" + hash + "\"");
+
+    // The uncompressed version is not valid for gzip
+    when(request.getHeader("Accept-Encoding")).thenReturn("gzip");
+    when(request.getHeader("If-None-Match")).thenReturn("\"" + hash + "\"");
+    servlet.doGet(request, response);
+    verify(response).setHeader("ETag", "\"" + hash + "-gz\"");
+    verify(response, never()).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+
+    when(request.getHeader("If-None-Match")).thenReturn("\"" + hash + "-gz\"");
+    servlet.doGet(request, response);
+    verify(response).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+  }
+
+  @Test
+  public void selectsEncoding() {
+    assertEquals(null, ConfigSnapshot.selectEncoding(null));
+    assertEquals(null, ConfigSnapshot.selectEncoding("identity"));
+    assertEquals(null, ConfigSnapshot.selectEncoding("gzip;q=0, deflate;q=0"));
+    assertEquals("gzip", ConfigSnapshot.selectEncoding("gzip, deflate"));
+    assertEquals("gzip", ConfigSnapshot.selectEncoding("*"));
+    assertEquals("deflate", ConfigSnapshot.selectEncoding("gzip;q=0.2, deflate"));
+    assertEquals("deflate", ConfigSnapshot.selectEncoding("gzip;q=0, *"));
+  }
+
+  @Test
+  public void splitsConfigInBootstrapAndOverlay() throws Exception {
+    Plugin shared = new Plugin("p", JSONObject.fromObject("{default-conf:{m1 : {a : 1}, m2 : 2}}"));
+    shared.addModule("m1");
+    Plugin specific = new Plugin("p", JSONObject.fromObject("{default-conf:{m1 : {a : 3}}}"));
+    specific.addModule("m1");
+
+    mockEmptyConfig();
+    request.getSession().setAttribute(Geoladris.ATTR_LOCALE, Locale.ROOT);
+    when(config.getSharedPluginConfig(request)).thenReturn(new Plugin[] {shared});
+    when(config.getPluginConfig(Locale.ROOT, request)).thenReturn(new Plugin[] {specific});
+    when(config.getSharedCacheKey()).thenReturn("shared");
+    when(request.getPathInfo()).thenReturn(ConfigServlet.PATH_OVERLAY);
+
+    servlet.doGet(request, response);
+    String overlay = context.getResponse();
+    JSONObject json =
+        JSONObject.fromObject(overlay.substring(overlay.indexOf('{'), overlay.indexOf(";\n")));
+    JSONObject cfg = json.getJSONObject("config");
+    assertEquals(3, cfg.getJSONObject("p/m1").getInt("a"));
+    assertTrue(cfg.getJSONObject("p/m2").isNullObject());
+    assertFalse(cfg.has("i18n"));
+    assertTrue(overlay.contains("config" + ConfigServlet.MESSAGES_PREFIX));
+    JSONObject customization = cfg.getJSONObject("customization");
+    assertTrue(customization.has("languageCode"));
+    assertFalse(customization.has("modules"));
+
+    String bootstrapUrl = overlay.substring(overlay.indexOf("config/bootstrap-"));
+    bootstrapUrl = bootstrapUrl.substring("config".length(), bootstrapUrl.indexOf(".js") + 3);
+    when(request.getPathInfo()).thenReturn(bootstrapUrl);
+    servlet.doGet(request, response);
+    String bootstrap = context.getResponse();
+    verify(response).setHeader("Cache-Control", "public, max-age=31536000, immutable");
+    json = JSONObject.fromObject(bootstrap.substring(bootstrap.indexOf("(require, ") + 10,
+        bootstrap.length() - 2));
+    cfg = json.getJSONObject("config");
+    assertEquals(1, cfg.getJSONObject("p/m1").getInt("a"));
+    assertEquals(2, cfg.getInt("p/m2"));
+    assertEquals("p/m1", cfg.getJSONObject("customization").getJSONArray("modules").get(0));
+  }
+
+  @Test
+  public void unknownBootstrap() throws Exception {
+    mockEmptyConfig();
+    when(config.getSharedPluginConfig(request)).thenReturn(new Plugin[0]);
+    when(request.getPathInfo()).thenReturn(ConfigServlet.BOOTSTRAP_PREFIX + "1234.js");
+    servlet.doGet(request, response);
+
+    verify(response, never()).sendError(HttpServletResponse.SC_NOT_FOUND);
+    verify(response).setHeader("Cache-Control", "no-cache");
+    ArgumentCaptor<String> location = ArgumentCaptor.forClass(String.class);
+    verify(response).sendRedirect(location.capture());
+    assertTrue(location.getValue().startsWith("bootstrap-"));
+  }
+
+  @Test
+  public void rebuildsDroppedBootstrap() throws Exception {
+    mockEmptyConfig();
+    Plugin plugin = new Plugin("p", JSONObject.fromObject("{default-conf:{m : 0}}"));
+    when(config.getSharedPluginConfig(request)).thenReturn(new Plugin[] {plugin});
+    when(config.getSharedCacheKey()).thenReturn("0");
+    String hash = getRedirectedBootstrapHash();
+
+    // Other versions drop the first one
+    for (int i = 1; i <= 8; i++) {
+      Plugin other = new Plugin("p", JSONObject.fromObject("{default-conf:{m : " + i + "}}"));
+      when(config.getSharedPluginConfig(request)).thenReturn(new Plugin[] {other});
+      when(config.getSharedCacheKey()).thenReturn(Integer.toString(i));
+      assertTrue(!hash.equals(getRedirectedBootstrapHash()));
+    }
+
+    // Still the current version, after a restart or on another node
+    when(config.getSharedPluginConfig(request)).thenReturn(new Plugin[] {plugin});
+    when(config.getSharedCacheKey()).thenReturn("0");
+    when(request.getPathInfo()).thenReturn(ConfigServlet.BOOTSTRAP_PREFIX + hash + ".js");
+    servlet.doGet(request, response);
+    verify(response).setHeader("Cache-Control", "public, max-age=31536000, immutable");
+    assertTrue(context.getResponse().contains("\"p/m\":0"));
+  }
+
+  private String getRedirectedBootstrapHash() throws Exception {
+    when(request.getPathInfo()).thenReturn(ConfigServlet.BOOTSTRAP_PREFIX + "1234.js");
+    servlet.doGet(request, response);
+    ArgumentCaptor<String> location = ArgumentCaptor.forClass(String.class);
+    verify(response, atLeastOnce()).sendRedirect(location.capture());
+    String url = location.getValue();
+    return url.substring("bootstrap-".length(), url.length() - 3);
+  }
+
+  @Test
+  public void redirectsToCurrentMessages() throws Exception {
+    mockEmptyConfig();
+    request.getSession().setAttribute(Geoladris.ATTR_LOCALE, Locale.ROOT);
+    when(request.getPathInfo()).thenReturn(ConfigServlet.MESSAGES_PREFIX + "1234.js");
+    servlet.doGet(request, response);
+
+    verify(response, never()).sendError(HttpServletResponse.SC_NOT_FOUND);
+    ArgumentCaptor<String> location = ArgumentCaptor.forClass(String.class);
+    verify(response).sendRedirect(location.capture());
+    assertTrue(location.getValue().startsWith("i18n-"));
+  }
+
+  @Test
+  public void servesMessagesAsFingerprintedScript() throws Exception {
+    ResourceBundle bundle =
+        new PropertyResourceBundle(new ByteArrayInputStream("title=Portal".getBytes()));
+    when(config.getMessages(Locale.ROOT)).thenReturn(bundle);
+    when(config.getProperties()).thenReturn(new Properties());
+    request.getSession().setAttribute(Geoladris.ATTR_LOCALE, Locale.ROOT);
+    when(config.getPluginConfig(Locale.ROOT, request)).thenReturn(new Plugin[0]);
+    when(config.getSharedCacheKey()).thenReturn("shared");
+
+    servlet.doGet(request, response);
+    String content = context.getResponse();
+    String messagesUrl = content.substring(content.indexOf("config/i18n-"));
+    messagesUrl = messagesUrl.substring("config".length(), messagesUrl.indexOf(".js") + 3);
+
+    when(request.getPathInfo()).thenReturn(messagesUrl);
+    servlet.doGet(request, response);
+    String messages = context.getResponse();
+    verify(response).setHeader("Cache-Control", "public, max-age=31536000, immutable");
+    assertTrue(messages.startsWith("require.config.i18n = "));
+    JSONObject json = JSONObject.fromObject(
+        messages.substring(messages.indexOf('{'), messages.length() - 1));
+    assertEquals("Portal", json.getString("title"));
+  }
+
+  @Test
+  public void sendsDeltaFromKnownVersion() throws Exception {
+    Plugin v1 = new Plugin("p", JSONObject.fromObject("{default-conf:{m1 : {a : 1}, m2 : 2}}"));
+    Plugin v2 = new Plugin("p", JSONObject.fromObject("{default-conf:{m1 : {a : 3}}}"));
+
+    mockEmptyConfig();
+    request.getSession().setAttribute(Geoladris.ATTR_LOCALE, Locale.ROOT);
+    when(config.getPluginConfig(Locale.ROOT, request)).thenReturn(new Plugin[] {v1});
+    when(config.getCacheKey(Locale.ROOT, request)).thenReturn("v1");
+    servlet.doGet(request, response);
+    String hash = ConfigSnapshot.hash(context.getResponse().getBytes("UTF-8"));
+
+    when(config.getPluginConfig(Locale.ROOT, request)).thenReturn(new Plugin[] {v2});
+    when(config.getCacheKey(Locale.ROOT, request)).thenReturn("v2");
+    when(request.getHeader("If-None-Match")).thenReturn("\"" + hash + "\"");
+    when(request.getHeader("A-IM")).thenReturn(ConfigServlet.DELTA_IM);
+    servlet.doGet(request, response);
+
+    verify(response).setStatus(226);
+    verify(response).setHeader("Delta-Base", "\"" + hash + "\"");
+    JSONObject json = JSONObject.fromObject(context.getResponse());
+    assertEquals(hash, json.getString("base"));
+    JSONObject delta = json.getJSONObject("delta").getJSONObject("config");
+    assertEquals(3, delta.getJSONObject("p/m1").getInt("a"));
+    assertTrue(delta.getJSONObject("p/m2").isNullObject());
+    assertFalse(delta.has("url-parameters"));
+    verify(response).setHeader("ETag", "\"" + json.getString("hash") + "\"");
+
+    // The client now has the current version
+    when(request.getHeader("If-None-Match")).thenReturn("\"" + json.getString("hash") + "\"");
+    servlet.doGet(request, response);
+    verify(response).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+  }
+
+  @Test
+  public void sendsWholeConfigFromUnknownVersion() throws Exception {
+    Plugin plugin = new Plugin("p", JSONObject.fromObject("{default-conf:{m1 : {a : 1}}}"));
+    mockEmptyConfig();
+    request.getSession().setAttribute(Geoladris.ATTR_LOCALE, Locale.ROOT);
+    when(config.getPluginConfig(Locale.ROOT, request)).thenReturn(new Plugin[] {plugin});
+    when(config.getCacheKey(Locale.ROOT, request)).thenReturn("key");
+    when(request.getHeader("If-None-Match")).thenReturn("\"1234\"");
+    when(request.getHeader("A-IM")).thenReturn(ConfigServlet.DELTA_IM);
+
+    servlet.doGet(request, response);
+
+    verify(response, never()).setStatus(226);
+    JSONObject json = JSONObject.fromObject(context.getResponse());
+    assertTrue(json.getJSONObject("base").isNullObject());
+    assertTrue(json.getString("messages").startsWith("config" + ConfigServlet.MESSAGES_PREFIX));
+    assertEquals(1, json.getJSONObject("delta").getJSONObject("config").getJSONObject("p/m1")
+        .getInt("a"));
+  }
+
+  @Test
+  public void servesDeltaLoader() throws Exception {
+    when(request.getPathInfo()).thenReturn(ConfigServlet.PATH_LOADER);
+    servlet.doGet(request, response);
+
+    String loader = context.getResponse();
+    assertTrue(loader.contains("'A-IM', '" + ConfigServlet.DELTA_IM + "'"));
+    assertTrue(loader.contains("localStorage"));
+    verify(response).setHeader(eq("ETag"), any(String.class));
+  }
+
+  @Test
+  public void doesNotCacheIfConfigCannotBeCached() throws Exception {
+    mockEmptyConfig();
+    request.getSession().setAttribute(Geoladris.ATTR_LOCALE, Locale.ROOT);
+    when(config.getPluginConfig(Locale.ROOT, request)).thenReturn(new Plugin[0]);
+
+    servlet.doGet(request, response);
+    servlet.doGet(request, response);
+
+    verify(config, times(2)).getPluginConfig(Locale.ROOT, request);
+    verify(response, never()).setHeader(eq("ETag"), any(String.class));
+  }
+
+  @Test
+  public void buildsConfigAsynchronously() throws Exception {
+    AsyncContext async = mockAsync();
+    mockEmptyConfig();
+    request.getSession().setAttribute(Geoladris.ATTR_LOCALE, Locale.ROOT);
+    when(config.getPluginConfig(eq(Locale.ROOT), any(HttpServletRequest.class)))
+        .thenReturn(new Plugin[0]);
+
+    servlet.doGet(request, response);
+
+    verify(async, timeout(5000)).complete();
+    verify(async).setTimeout(1000);
+    assertTrue(context.getResponse().contains("var require = "));
+  }
+
+  @Test
+  public void providersCheckRolesAsynchronously() throws Exception {
+    AsyncContext async = mockAsync();
+    mockEmptyConfig();
+    request.getSession().setAttribute(Geoladris.ATTR_LOCALE, Locale.ROOT);
+    when(request.isUserInRole("admin")).thenReturn(true);
+    final AtomicBoolean admin = new AtomicBoolean();
+    when(config.getPluginConfig(eq(Locale.ROOT), any(HttpServletRequest.class)))
+        .then(new Answer<Plugin[]>() {
+          @Override
+          public Plugin[] answer(InvocationOnMock invocation) throws Throwable {
+            HttpServletRequest req = (HttpServletRequest) invocation.getArguments()[1];
+            admin.set(req.isUserInRole("admin"));
+            return new Plugin[0];
+          }
+        });
+
+    servlet.doGet(request, response);
+
+    verify(async, timeout(5000)).complete();
+    assertTrue(admin.get());
+  }
+
+  @Test
+  public void sendsErrorOnAsyncTimeout() throws Exception {
+    AsyncContext async = mockAsync();
+    mockEmptyConfig();
+    request.getSession().setAttribute(Geoladris.ATTR_LOCALE, Locale.ROOT);
+    final CountDownLatch latch = new CountDownLatch(1);
+    when(config.getPluginConfig(eq(Locale.ROOT), any(HttpServletRequest.class)))
+        .then(new Answer<Plugin[]>() {
+          @Override
+          public Plugin[] answer(InvocationOnMock invocation) throws Throwable {
+            latch.await();
+            return new Plugin[0];
+          }
+        });
+
+    servlet.doGet(request, response);
+    ArgumentCaptor<AsyncListener> listener = ArgumentCaptor.forClass(AsyncListener.class);
+    verify(async).addListener(listener.capture());
+    listener.getValue().onTimeout(mock(AsyncEvent.class));
+    latch.countDown();
+
+    verify(response).setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+    verify(async, timeout(5000)).complete();
+    Thread.sleep(100);
+    verify(async, times(1)).complete();
+    assertFalse(context.getResponse().contains("var require = "));
+  }
+
+  private AsyncContext mockAsync() throws ServletException {
+    when(context.servletContext.getInitParameter(Environment.CONFIG_ASYNC)).thenReturn("true");
+    when(context.servletContext.getInitParameter(Environment.CONFIG_TIMEOUT)).thenReturn("1000");
+    this.servlet = new ConfigServlet();
+    this.servlet.init(context.servletConfig);
+
+    AsyncContext async = mock(AsyncContext.class);
+    when(request.isAsyncSupported()).thenReturn(true);
+    when(request.startAsync(request, response)).thenReturn(async);
+    when(async.getResponse()).thenReturn(response);
+    return async;
+  }
+
   private void mockEmptyConfig() {
     ResourceBundle bundle = ResourceBundle.getBundle("messages");
     when(this.config.getMessages(any(Locale.class))).thenReturn(bundle);
@@ -0,0 +1,96 @@
+package org.geoladris.servlet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Collections;
+import java.util.Locale;
+
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpSession;
+
+import org.junit.Test;
+
+public class DetachedRequestTest {
+  @Test
+  public void copiesRequest() {
+    HttpServletRequest request = mock(HttpServletRequest.class);
+    HttpSession session = mock(HttpSession.class);
+    when(request.getMethod()).thenReturn("GET");
+    when(request.getRequestURI()).thenReturn("/portal/config");
+    when(request.getRequestURL()).thenReturn(new StringBuffer("http://host/portal/config"));
+    when(request.getRemoteUser()).thenReturn("user");
+    when(request.getSession()).thenReturn(session);
+    when(request.getLocales()).thenReturn(Collections.enumeration(
+        Collections.singletonList(Locale.ENGLISH)));
+    when(request.getCookies()).thenReturn(new Cookie[] {new Cookie("a", "1")});
+    when(request.getHeaderNames())
+        .thenReturn(Collections.enumeration(Collections.singletonList("Max-Forwards")));
+    when(request.getHeaders("Max-Forwards"))
+        .thenReturn(Collections.enumeration(Collections.singletonList("10")));
+
+    DetachedRequest detached = new DetachedRequest(request);
+    // The actual request may be recycled now
+    when(request.getMethod()).thenReturn(null);
+    when(request.getRemoteUser()).thenReturn("other");
+
+    assertEquals("GET", detached.getMethod());
+    assertEquals("/portal/config", detached.getRequestURI());
+    assertEquals("http://host/portal/config", detached.getRequestURL().toString());
+    assertEquals("user", detached.getRemoteUser());
+    assertEquals(session, detached.getSession(false));
+    assertEquals(Locale.ENGLISH, detached.getLocales().nextElement());
+    assertEquals("1", detached.getCookies()[0].getValue());
+    assertEquals(10, detached.getIntHeader("max-forwards"));
+    assertEquals(-1, detached.getDateHeader("If-Modified-Since"));
+    assertNull(detached.getParameter("a"));
+  }
+
+  @Test
+  public void failsOnUncoveredMethods() throws Exception {
+    HttpServletRequest request = mock(HttpServletRequest.class);
+    DetachedRequest detached = new DetachedRequest(request);
+    try {
+      detached.getInputStream();
+      fail();
+    } catch (IllegalStateException e) {
+      // expected
+    }
+    try {
+      detached.authenticate(null);
+      fail();
+    } catch (IllegalStateException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void checksRolesUntilReleased() {
+    HttpServletRequest request = mock(HttpServletRequest.class);
+    when(request.isUserInRole("admin")).thenReturn(true);
+    when(request.getAuthType()).thenReturn(HttpServletRequest.BASIC_AUTH);
+    DetachedRequest detached = new DetachedRequest(request);
+
+    assertTrue(detached.isUserInRole("admin"));
+    assertFalse(detached.isUserInRole("other"));
+    assertEquals(HttpServletRequest.BASIC_AUTH, detached.getAuthType());
+
+    detached.release();
+    try {
+      detached.isUserInRole("admin");
+      fail();
+    } catch (IllegalStateException e) {
+      // expected
+    }
+    verify(request, times(2)).isUserInRole(any(String.class));
+  }
+}
@@ -0,0 +1,86 @@
+package org.geoladris.servlet;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.PropertyResourceBundle;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.geoladris.Environment;
+import org.geoladris.Geoladris;
+import org.geoladris.Plugin;
+import org.geoladris.TestingServletContext;
+import org.geoladris.config.Config;
+import org.junit.Before;
+import org.junit.Test;
+
+import net.sf.json.JSONObject;
+
+public class IndexServletTest {
+  private Config config;
+  private IndexServlet servlet;
+  private HttpServletRequest request;
+  private HttpServletResponse response;
+  private TestingServletContext context;
+
+  @Before
+  public void setup() throws Exception {
+    this.config = mock(Config.class);
+    this.servlet = new IndexServlet();
+
+    this.context = new TestingServletContext();
+    this.response = context.response;
+    this.request = context.request;
+    context.servletContext.setAttribute(Geoladris.ATTR_CONFIG, this.config);
+    request.getSession().setAttribute(Geoladris.ATTR_LOCALE, Locale.ROOT);
+
+    Plugin plugin = new Plugin("p", JSONObject.fromObject("{default-conf:{m1 : {a : 1}}}"));
+    plugin.addModule("m1");
+    plugin.addStylesheet("s.css");
+    when(config.getPluginConfig(Locale.ROOT, request)).thenReturn(new Plugin[] {plugin});
+    when(config.getMessages(any(Locale.class))).thenReturn(new PropertyResourceBundle(
+        new ByteArrayInputStream("title=<Portal>\nmsg=</script>".getBytes())));
+    when(config.getProperties()).thenReturn(new Properties());
+  }
+
+  @Test
+  public void inlinesConfig() throws Exception {
+    when(context.servletContext.getInitParameter(Environment.RENDER_INDEX)).thenReturn("true");
+    servlet.init(context.servletConfig);
+
+    servlet.doGet(request, response);
+    String html = context.getResponse();
+
+    assertTrue(html.contains("<title>&lt;Portal&gt;</title>"));
+    assertTrue(html.contains("[\"p/css/s.css\"].forEach(addCSS)"));
+    assertFalse(html.contains(IndexServlet.CONFIG_SCRIPT));
+    assertTrue(html.contains("\"p/m1\":{\"a\":1}"));
+    assertTrue(html.contains("require.config.i18n = "));
+    assertTrue(html.contains("<\\/script>"));
+  }
+
+  @Test
+  public void cachesPages() throws Exception {
+    when(context.servletContext.getInitParameter(Environment.RENDER_INDEX)).thenReturn("true");
+    when(config.getCacheKey(Locale.ROOT, request)).thenReturn("key");
+    servlet.init(context.servletConfig);
+
+    servlet.doGet(request, response);
+    servlet.doGet(request, response);
+
+    verify(config, times(1)).getPluginConfig(Locale.ROOT, request);
+    verify(response, times(2)).setHeader("Cache-Control", "private, no-cache");
+    verify(response, times(2)).setHeader(eq("ETag"), any(String.class));
+  }
+}
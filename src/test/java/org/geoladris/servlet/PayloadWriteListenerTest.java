@@ -0,0 +1,136 @@
+package org.geoladris.servlet;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+public class PayloadWriteListenerTest {
+  @Test
+  public void writesInChunksWhenReady() throws Exception {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    final WriteListener[] listener = new WriteListener[1];
+    final boolean[] ready = new boolean[] {true};
+    final int[] writes = new int[1];
+    ServletOutputStream out = new ServletOutputStream() {
+      @Override
+      public void write(int b) throws IOException {
+        bytes.write(b);
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+        bytes.write(b, off, len);
+        writes[0]++;
+        // Not ready after each chunk
+        ready[0] = false;
+      }
+
+      @Override
+      public boolean isReady() {
+        return ready[0];
+      }
+
+      @Override
+      public void setWriteListener(WriteListener l) {
+        listener[0] = l;
+      }
+    };
+
+    HttpServletResponse response = mock(HttpServletResponse.class);
+    when(response.getOutputStream()).thenReturn(out);
+    AsyncContext async = mock(AsyncContext.class);
+    when(async.getResponse()).thenReturn(response);
+
+    byte[] payload = new byte[PayloadWriteListener.CHUNK_SIZE * 2 + 1];
+    for (int i = 0; i < payload.length; i++) {
+      payload[i] = (byte) i;
+    }
+    when(async.getTimeout()).thenReturn(30000L);
+    PayloadWriteListener.write(async, payload);
+    verify(async, never()).setTimeout(anyLong());
+
+    for (int i = 0; i < 3; i++) {
+      ready[0] = true;
+      listener[0].onWritePossible();
+      verify(async, never()).complete();
+    }
+    assertEquals(3, writes[0]);
+
+    ready[0] = true;
+    listener[0].onWritePossible();
+    verify(async, times(1)).complete();
+    assertArrayEquals(payload, bytes.toByteArray());
+  }
+
+  @Test
+  public void completesOnError() throws Exception {
+    HttpServletResponse response = mock(HttpServletResponse.class);
+    ServletOutputStream out = mock(ServletOutputStream.class);
+    when(response.getOutputStream()).thenReturn(out);
+    AsyncContext async = mock(AsyncContext.class);
+    when(async.getResponse()).thenReturn(response);
+
+    PayloadWriteListener.write(async, new byte[10]);
+    ArgumentCaptor<WriteListener> listener = ArgumentCaptor.forClass(WriteListener.class);
+    verify(out).setWriteListener(listener.capture());
+    listener.getValue().onError(new IOException("closed"));
+    verify(async).complete();
+  }
+
+  @Test
+  public void writesHeadSynchronously() throws Exception {
+    HttpServletRequest request = mock(HttpServletRequest.class);
+    when(request.getMethod()).thenReturn("HEAD");
+    HttpServletResponse response = mock(HttpServletResponse.class);
+    ServletOutputStream out = mock(ServletOutputStream.class);
+    when(response.getOutputStream()).thenReturn(out);
+    AsyncContext async = mock(AsyncContext.class);
+    when(async.getRequest()).thenReturn(request);
+    when(async.getResponse()).thenReturn(response);
+
+    byte[] payload = new byte[PayloadWriteListener.CHUNK_SIZE * 2];
+    PayloadWriteListener.write(async, payload);
+    verify(out, never()).setWriteListener(any(WriteListener.class));
+    verify(out).write(payload);
+    verify(async).complete();
+  }
+
+  @Test
+  public void completesOnTimeout() throws Exception {
+    HttpServletResponse response = mock(HttpServletResponse.class);
+    ServletOutputStream out = mock(ServletOutputStream.class);
+    when(response.getOutputStream()).thenReturn(out);
+    AsyncContext async = mock(AsyncContext.class);
+    when(async.getResponse()).thenReturn(response);
+
+    // The timeout is never disabled
+    PayloadWriteListener.write(async, new byte[10]);
+    verify(async).setTimeout(PayloadWriteListener.WRITE_TIMEOUT);
+
+    ArgumentCaptor<AsyncListener> listener = ArgumentCaptor.forClass(AsyncListener.class);
+    verify(async).addListener(listener.capture());
+    listener.getValue().onTimeout(new AsyncEvent(async));
+    listener.getValue().onTimeout(new AsyncEvent(async));
+    verify(async, times(1)).complete();
+  }
+}
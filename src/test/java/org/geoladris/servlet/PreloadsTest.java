@@ -0,0 +1,99 @@
+package org.geoladris.servlet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.geoladris.Plugin;
+import org.geoladris.config.Config;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PreloadsTest {
+  private Plugin plugin;
+
+  @Before
+  public void setup() {
+    this.plugin = new Plugin("p", false);
+    this.plugin.addModule("m1");
+    this.plugin.addModule("m2");
+    this.plugin.addStylesheet("s.css");
+  }
+
+  @Test
+  public void stylesheetsFirst() {
+    assertEquals("</app/p/css/s.css>; rel=preload; as=style, "
+        + "</app/p/m1.js>; rel=preload; as=script, </app/p/m2.js>; rel=preload; as=script",
+        Preloads.build(new Plugin[] {plugin}, "/app", 1000));
+  }
+
+  @Test
+  public void cappedByBudget() {
+    String first = "</app/p/css/s.css>; rel=preload; as=style";
+    assertEquals(first, Preloads.build(new Plugin[] {plugin}, "/app", first.length() + 10));
+    assertNull(Preloads.build(new Plugin[] {plugin}, "/app", 10));
+  }
+
+  @Test
+  public void cachedByRequestKey() {
+    Config config = mock(Config.class);
+    HttpServletRequest request = mock(HttpServletRequest.class);
+    when(request.getContextPath()).thenReturn("/app");
+    when(config.getPluginConfig(null, request)).thenReturn(new Plugin[] {plugin});
+    when(config.getCacheKey(null, request)).thenReturn("1");
+
+    Preloads preloads = new Preloads(1000);
+    String header = preloads.getHeader(config, request);
+    assertEquals(header, preloads.getHeader(config, request));
+    verify(config, times(1)).getPluginConfig(null, request);
+
+    when(config.getCacheKey(null, request)).thenReturn("2");
+    preloads.getHeader(config, request);
+    verify(config, times(2)).getPluginConfig(null, request);
+
+    // Not cached without a key
+    when(config.getCacheKey(null, request)).thenReturn(null);
+    preloads.getHeader(config, request);
+    preloads.getHeader(config, request);
+    verify(config, times(4)).getPluginConfig(null, request);
+  }
+
+  @Test
+  public void onlyEnabledPluginsForTheRequest() {
+    Config config = mock(Config.class);
+    HttpServletRequest admin = mock(HttpServletRequest.class);
+    HttpServletRequest user = mock(HttpServletRequest.class);
+    when(admin.getContextPath()).thenReturn("/app");
+    when(user.getContextPath()).thenReturn("/app");
+    Plugin other = new Plugin("admin", false);
+    other.addModule("m");
+    when(config.getPluginConfig(null, admin)).thenReturn(new Plugin[] {plugin, other});
+    when(config.getPluginConfig(null, user)).thenReturn(new Plugin[] {plugin});
+    when(config.getCacheKey(null, admin)).thenReturn("admin");
+    when(config.getCacheKey(null, user)).thenReturn("user");
+
+    Preloads preloads = new Preloads(1000);
+    assertTrue(preloads.getHeader(config, admin).contains("/app/admin/m.js"));
+    assertFalse(preloads.getHeader(config, user).contains("/app/admin/m.js"));
+  }
+
+  @Test
+  public void moduleStylesheets() {
+    Plugin plugin = new Plugin("p", false);
+    plugin.addModuleStylesheet("m.css");
+    assertEquals("</app/p/m.css>; rel=preload; as=style",
+        Preloads.build(new Plugin[] {plugin}, "/app", 1000));
+  }
+
+  @Test
+  public void disabled() {
+    assertNull(new Preloads(0).getHeader(mock(Config.class), mock(HttpServletRequest.class)));
+  }
+}